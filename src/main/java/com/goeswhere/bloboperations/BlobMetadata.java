@@ -9,10 +9,18 @@ public class BlobMetadata<T> {
     public final UUID hash;
     public final T extra;
 
+    // null if the key never expires
+    public final ZonedDateTime expiresAt;
+
     public BlobMetadata(String key, ZonedDateTime created, UUID hash, T extra) {
+        this(key, created, hash, extra, null);
+    }
+
+    public BlobMetadata(String key, ZonedDateTime created, UUID hash, T extra, ZonedDateTime expiresAt) {
         this.key = key;
         this.created = created;
         this.hash = hash;
         this.extra = extra;
+        this.expiresAt = expiresAt;
     }
 }
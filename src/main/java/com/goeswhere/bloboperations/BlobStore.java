@@ -3,34 +3,60 @@ package com.goeswhere.bloboperations;
 import com.goeswhere.bloboperations.util.OutputStreamConsumer;
 import com.goeswhere.bloboperations.util.Stringer;
 import com.goeswhere.bloboperations.util.VoidOutputStreamConsumer;
+import com.goeswhere.bloboperations.util.ZipWriter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
 import javax.sql.DataSource;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class BlobStore<EX> {
     private static final Log log = LogFactory.getLog(BlobStore.class);
 
     public static final String DEFAULT_TABLE_NAME = "metadata";
 
+    public static final int DEFAULT_BIND_ATTEMPTS = 5;
+
+    // keys which have expired, but haven't been swept yet, are treated as if they're missing
+    static final String LIVE = " AND (expires_at IS NULL OR expires_at > now())";
+
+    // rows which copies and renames may replace: those which store() would take over
+    private static final String REPLACEABLE = " AND (hash IS NULL OR expires_at <= now())";
+
+    private static final long BIND_RETRY_MILLIS = 20;
+
+    private static final int FIND_FETCH_SIZE = 1000;
+
     final HashedBlobStorage storage;
-    private final Stringer<EX> serialiseExtra;
+    final Stringer<EX> serialiseExtra;
 
-    private final String metadataTableName;
+    final String metadataTableName;
     private final String selectFullMetadata;
 
+    // whether functions.pgsql is installed; null until we've looked
+    private volatile Boolean serverFunctions;
+
+    // whether the extra column is JSONB, and hence can be searched; null until we've looked
+    volatile Boolean jsonExtra;
+
     public BlobStore(
             HashedBlobStorage storage,
             Stringer<EX> serialiseExtra) {
@@ -44,7 +70,7 @@ public class BlobStore<EX> {
         this.storage = storage;
         this.serialiseExtra = serialiseExtra;
         this.metadataTableName = metadataTableName;
-        selectFullMetadata = "SELECT key, created, " + metadataTableName + ".hash, extra, original_length, stored_length, loid" +
+        selectFullMetadata = "SELECT key, created, " + metadataTableName + ".hash, extra, expires_at, original_length, stored_length, loid, codec" +
                 " FROM " + metadataTableName + " INNER JOIN " + storage.blobTableName +
                 " ON (" + metadataTableName + ".hash=" + storage.blobTableName + ".hash) ";
     }
@@ -53,53 +79,246 @@ public class BlobStore<EX> {
         return new BlobStore<>(HashedBlobStorage.forDatasource(ds), Stringer.alwaysNull());
     }
 
-    public EX store(String key, OutputStreamConsumer<EX> data) {
-        // outside of the transaction, ensure that the row exists, so we can lock it.
-        try {
-            storage.jdbc.update("INSERT INTO " + metadataTableName + " (key, created) VALUES (?, now())", key);
-        } catch (DuplicateKeyException ignored) {
-            log.info("there was a metadata key collision, but it might not be fatal; continuing.  key=" + key);
+    boolean serverFunctions() {
+        Boolean installed = serverFunctions;
+        if (null == installed) {
+            installed = storage.jdbc.queryForObject("SELECT to_regprocedure(" +
+                    "'blobops_store_bind(regclass,regclass,varchar,uuid,bigint,bigint,oid,varchar,varchar,timestamptz)') IS NOT NULL",
+                    Boolean.class);
+            serverFunctions = installed;
         }
+        return installed;
+    }
 
+    // e.g. to compare the two ways of storing; null to look for them again
+    void useServerFunctions(Boolean use) {
+        serverFunctions = use;
+    }
+
+    boolean jsonExtra() {
+        Boolean json = jsonExtra;
+        if (null == json) {
+            json = storage.jdbc.queryForObject("SELECT atttypid = 'jsonb'::regtype FROM pg_attribute" +
+                    " WHERE attrelid = CAST(? AS REGCLASS) AND attname = 'extra'",
+                    new Object[]{metadataTableName}, Boolean.class);
+            jsonExtra = json;
+        }
+        return json;
+    }
+
+    // the driver sends strings as VARCHAR, which won't go into a JSONB column without a cast
+    String extraParameter() {
+        return jsonExtra() ? "CAST(? AS JSONB)" : "?";
+    }
+
+    public EX store(String key, OutputStreamConsumer<EX> data) {
+        return store(key, null, data);
+    }
+
+    // expiresAt: after this, the key behaves as if it was deleted, and will be removed by deleteExpired; null for never
+    public EX store(String key, ZonedDateTime expiresAt, OutputStreamConsumer<EX> data) {
+        final EX stored = serverFunctions()
+                ? storeViaFunctions(key, expiresAt, data)
+                : storeViaStatements(key, expiresAt, data);
+        storage.wrote();
+        return stored;
+    }
+
+    private EX storeViaFunctions(String key, ZonedDateTime expiresAt, OutputStreamConsumer<EX> data) {
+        // the function can create the metadata row inside the transaction, as it can avoid failing on a duplicate
         return storage.transaction.execute(status -> {
-            final UUID existing = storage.jdbc.queryForObject(
-                    "SELECT hash FROM " + metadataTableName + " WHERE key=? FOR UPDATE",
-                    new Object[]{key}, UUID.class);
+            final Long oid = storage.jdbc.queryForObject("SELECT blobops_store_begin(CAST(? AS REGCLASS), ?)",
+                    new Object[]{metadataTableName, key}, Long.class);
 
-            if (null != existing) {
+            if (null == oid) {
                 throw new IllegalStateException(key + " already exists");
             }
 
-            class Capture implements VoidOutputStreamConsumer {
-                EX extra;
+            final Capture<EX> cap = new Capture<>(data);
+            final HashedBlob hashed = storage.write(oid, cap);
+
+            storage.jdbc.queryForObject("SELECT blobops_store_bind(" +
+                            "CAST(? AS REGCLASS), CAST(? AS REGCLASS), ?, ?, ?, ?, ?, ?, ?, ?)",
+                    new Object[]{metadataTableName, storage.blobTableName, key,
+                            hashed.uuid, hashed.storedLength, hashed.originalLength, hashed.oid, storage.codec(hashed),
+                            serialiseExtra.toString.apply(cap.extra), timestamp(expiresAt)},
+                    Boolean.class);
 
-                @Override
-                public void accept(OutputStream outputStream) throws IOException {
-                    extra = data.accept(outputStream);
+            return cap.extra;
+        });
+    }
+
+    private static class Capture<EX> implements VoidOutputStreamConsumer {
+        private final OutputStreamConsumer<EX> data;
+        EX extra;
+
+        Capture(OutputStreamConsumer<EX> data) {
+            this.data = data;
+        }
+
+        @Override
+        public void accept(OutputStream outputStream) throws IOException {
+            extra = data.accept(outputStream);
+        }
+    }
+
+    private EX storeViaStatements(String key, ZonedDateTime expiresAt, OutputStreamConsumer<EX> data) {
+        while (true) {
+            createKeyRow(key);
+
+            final Capture<EX> stored = storage.transaction.execute(status -> {
+                if (!lockMissingKey(key)) {
+                    return null;
                 }
+
+                final Capture<EX> cap = new Capture<>(data);
+                final HashedBlob hashed = storage.insert(cap);
+
+                bind(key, hashed.uuid, cap.extra, expiresAt);
+
+                return cap;
+            });
+
+            if (null != stored) {
+                return stored.extra;
             }
+        }
+    }
+
+    // Uploads (and dedups) the data before touching the key, then binds it in a short transaction, so the
+    // key is only locked for a few milliseconds, instead of for the whole upload.  If the key already exists,
+    // this fails after the upload, and the uploaded blob is left for collectGarbage.
+    public EX storeOptimistically(String key, OutputStreamConsumer<EX> data) {
+        return storeOptimistically(key, null, data, DEFAULT_BIND_ATTEMPTS);
+    }
+
+    // bindAttempts: how many times to try to take the key's lock before giving up, if another writer holds it
+    public EX storeOptimistically(String key, OutputStreamConsumer<EX> data, int bindAttempts) {
+        return storeOptimistically(key, null, data, bindAttempts);
+    }
+
+    public EX storeOptimistically(String key, ZonedDateTime expiresAt, OutputStreamConsumer<EX> data, int bindAttempts) {
+        failIfBound(key);
+
+        final Capture<EX> cap = new Capture<>(data);
+        final HashedBlob uploaded = storage.insert(cap);
+
+        createKeyRow(key);
+
+        int attempt = 1;
+        while (true) {
+            try {
+                final boolean bound = storage.transaction.execute(status -> {
+                    if (!lockMissingKey(key, " NOWAIT")) {
+                        return false;
+                    }
 
-            final Capture cap = new Capture();
-            final HashedBlob hashed = storage.insert(cap);
+                    // the blob was unreferenced until now, so may have been collected since we uploaded it
+                    if (storage.jdbc.queryForList("SELECT hash FROM " + storage.blobTableName + " WHERE hash=? FOR SHARE",
+                            new Object[]{uploaded.uuid}, UUID.class).isEmpty()) {
+                        throw new IllegalStateException("blob for " + key + " was collected before it could be bound");
+                    }
 
-            final int updated = storage.jdbc.update(
-                    "UPDATE " + metadataTableName + " SET hash=?, extra=? WHERE key=?",
-                    hashed.uuid, serialiseExtra.toString.apply(cap.extra), key);
+                    bind(key, uploaded.uuid, cap.extra, expiresAt);
+                    return true;
+                });
 
-            if (1 != updated) {
-                throw new IncorrectResultSizeDataAccessException("couldn't set metadata", 1, updated);
+                if (bound) {
+                    storage.wrote();
+                    return cap.extra;
+                }
+
+                // nobody's holding it; it's just gone, so make it again
+                createKeyRow(key);
+            } catch (PessimisticLockingFailureException e) {
+                if (attempt >= bindAttempts) {
+                    throw new IllegalStateException(key + " is being written by someone else", e);
+                }
+
+                try {
+                    Thread.sleep(BIND_RETRY_MILLIS * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted waiting to bind " + key, interrupted);
+                }
+                ++attempt;
             }
+        }
+    }
 
-            return cap.extra;
-        });
+    // fail early, although there's nothing to stop the key being written before we bind it
+    void failIfBound(String key) {
+        if (bound(key)) {
+            throw new IllegalStateException(key + " already exists");
+        }
+    }
+
+    // a key with no hash is a store which didn't complete, and an expired key is as good as deleted;
+    // store() will happily take either over
+    boolean bound(String key) {
+        return storage.jdbc.queryForObject("SELECT EXISTS (SELECT NULL FROM " + metadataTableName +
+                " WHERE key=? AND hash IS NOT NULL" + LIVE + ")", new Object[]{key}, Boolean.class);
+    }
+
+    void createKeyRow(String key) {
+        // outside of the transaction, ensure that the row exists, so we can lock it.
+        try {
+            storage.jdbc.update("INSERT INTO " + metadataTableName + " (key, created) VALUES (?, now())", key);
+        } catch (DuplicateKeyException ignored) {
+            log.info("there was a metadata key collision, but it might not be fatal; continuing.  key=" + key);
+        }
+    }
+
+    // False if the row has gone since createKeyRow: the expired row it found may since have been removed by
+    // deleteExpired.  The transaction can't create it again without risking failing, so the caller has to,
+    // outside of it, then retry.
+    boolean lockMissingKey(String key) {
+        return lockMissingKey(key, "");
+    }
+
+    private boolean lockMissingKey(String key, String wait) {
+        final List<Boolean> live = storage.jdbc.queryForList(
+                "SELECT hash IS NOT NULL" + LIVE + " FROM " + metadataTableName + " WHERE key=? FOR UPDATE" + wait,
+                new Object[]{key}, Boolean.class);
+
+        if (live.isEmpty()) {
+            return false;
+        }
+
+        if (live.get(0)) {
+            throw new IllegalStateException(key + " already exists");
+        }
+
+        return true;
+    }
+
+    // an expired key's row is reused, so everything is reset
+    void bind(String key, UUID hash, EX extra, ZonedDateTime expiresAt) {
+        final int updated = storage.jdbc.update(
+                "UPDATE " + metadataTableName + " SET created=now(), hash=?, extra=" + extraParameter() +
+                        ", expires_at=? WHERE key=?",
+                hash, serialiseExtra.toString.apply(extra), timestamp(expiresAt), key);
+
+        if (1 != updated) {
+            throw new IncorrectResultSizeDataAccessException("couldn't set metadata", 1, updated);
+        }
     }
 
     private BlobMetadata<EX> blobMetadataFromResultSet(String key, ResultSet rs) throws SQLException {
         return new BlobMetadata<>(
                 key,
-                ZonedDateTime.ofInstant(rs.getTimestamp("created").toInstant(), ZoneOffset.UTC),
+                zoned(rs.getTimestamp("created")),
                 hashColumn(rs),
-                serialiseExtra.fromString.apply(rs.getString("extra")));
+                serialiseExtra.fromString.apply(rs.getString("extra")),
+                zoned(rs.getTimestamp("expires_at")));
+    }
+
+    private static ZonedDateTime zoned(Timestamp timestamp) {
+        return null == timestamp ? null : ZonedDateTime.ofInstant(timestamp.toInstant(), ZoneOffset.UTC);
+    }
+
+    private static Timestamp timestamp(ZonedDateTime zoned) {
+        return null == zoned ? null : Timestamp.from(zoned.toInstant());
     }
 
     private UUID hashColumn(ResultSet rs) throws SQLException {
@@ -107,23 +326,36 @@ public class BlobStore<EX> {
     }
 
     public BlobMetadata<EX> metadata(String key) {
+        return metadata(storage.forReading(), key);
+    }
+
+    private BlobMetadata<EX> metadata(HashedBlobStorage source, String key) {
         // FOR SHARE prevents the row from being deleted, which will prevent
         // (at an application level) the blob from being deleted before we read it
-        return storage.jdbc.queryForObject(
-                "SELECT created, hash, extra FROM " + metadataTableName + " WHERE key=? FOR SHARE",
+        return source.jdbc.queryForObject(
+                "SELECT created, hash, extra, expires_at FROM " + metadataTableName +
+                        " WHERE key=?" + LIVE + source.shareLock,
                 new Object[]{key}, (rs, underscore) -> blobMetadataFromResultSet(key, rs));
     }
 
     public FullMetadata<EX> fullMetadata(String key) {
-        return storage.jdbc.queryForObject(
-                selectFullMetadata + " WHERE key=? FOR SHARE",
+        return fullMetadata(storage.forReading(), key);
+    }
+
+    private FullMetadata<EX> fullMetadata(HashedBlobStorage source, String key) {
+        return source.jdbc.queryForObject(
+                selectFullMetadata + " WHERE key=?" + LIVE + source.shareLock,
                 new Object[]{key}, fullMetadataMapper()
         );
     }
 
     public List<FullMetadata<EX>> listFullMetadataByPrefix(String prefix) {
-        return storage.jdbc.query(
-                selectFullMetadata + " WHERE key LIKE ? FOR SHARE",
+        return listFullMetadataByPrefix(storage.forReading(), prefix);
+    }
+
+    private List<FullMetadata<EX>> listFullMetadataByPrefix(HashedBlobStorage source, String prefix) {
+        return source.jdbc.query(
+                selectFullMetadata + " WHERE key LIKE ?" + LIVE + source.shareLock,
                 new Object[]{prefix + "%"}, fullMetadataMapper()
         );
     }
@@ -135,51 +367,211 @@ public class BlobStore<EX> {
                         hashColumn(rs),
                         rs.getLong("stored_length"),
                         rs.getLong("original_length"),
-                        rs.getLong("loid"))
+                        rs.getLong("loid"),
+                        rs.getString("codec"))
         );
     }
 
     public void updateUserMetadata(String key, EX newMetadata) {
-        final int updated = storage.jdbc.update("UPDATE " + metadataTableName + " SET extra=? WHERE key=?",
+        final int updated = storage.jdbc.update("UPDATE " + metadataTableName + " SET extra=" + extraParameter() +
+                        " WHERE key=?" + LIVE,
                 serialiseExtra.toString.apply(newMetadata),
                 key);
         if (1 != updated) {
             throw new IncorrectResultSizeDataAccessException(1, updated);
         }
+        storage.wrote();
+    }
+
+    // Streams the keys under the prefix whose extra contains the given JSON, e.g. {"status": "failed"},
+    // as in JSONB's @> operator.  The matching is done by the database, which can use a GIN index on extra.
+    // Needs the extra column to be JSONB.  Returns how many were found.
+    public long findByExtra(String prefix, String containing, Consumer<FullMetadata<EX>> consumer) {
+        if (!jsonExtra()) {
+            throw new IllegalStateException(metadataTableName + ".extra isn't JSONB, so can't be searched");
+        }
+
+        final HashedBlobStorage source = storage.forReading();
+        final RowMapper<FullMetadata<EX>> mapper = fullMetadataMapper();
+        final AtomicLong found = new AtomicLong();
+
+        // the driver only fetches in batches, rather than all at once, inside a transaction.
+        // No FOR SHARE: that would hold every match, blocking writers, until the consumer had seen them all.
+        // The results are only a snapshot; read() locks whichever the consumer goes on to read.
+        source.transaction.execute(status -> {
+            source.jdbc.query(conn -> {
+                final PreparedStatement ps = conn.prepareStatement(selectFullMetadata +
+                        " WHERE key LIKE ? AND extra @> CAST(? AS JSONB)" + LIVE);
+                ps.setFetchSize(FIND_FETCH_SIZE);
+                ps.setString(1, prefix + "%");
+                ps.setString(2, containing);
+                return ps;
+            }, (RowCallbackHandler) rs -> consumer.accept(mapper.mapRow(rs, (int) found.getAndIncrement())));
+            return null;
+        });
+
+        return found.get();
     }
 
     public <T> T read(String key, InputStreamAndMetadataConsumer<T, EX> consumer) {
-        return storage.transaction.execute(status -> {
-            final BlobMetadata<EX> metadata = metadata(key);
-            return storage.read(metadata.hash, is -> consumer.accept(is, metadata));
+        final HashedBlobStorage source = storage.forReading();
+
+        if (serverFunctions()) {
+            return source.transaction.execute(status -> {
+                final FullMetadata<EX> metadata = source.jdbc.queryForObject(
+                        "SELECT * FROM blobops_read(CAST(? AS REGCLASS), CAST(? AS REGCLASS), ?, ?)",
+                        new Object[]{metadataTableName, source.blobTableName, key, !source.shareLock.isEmpty()},
+                        fullMetadataMapper());
+                return source.read(metadata.backingStore.oid, metadata.backingStore.codec,
+                        is -> consumer.accept(is, metadata.metadata));
+            });
+        }
+
+        return source.transaction.execute(status -> {
+            final BlobMetadata<EX> metadata = metadata(source, key);
+            return source.read(metadata.hash, is -> consumer.accept(is, metadata));
+        });
+    }
+
+    public <T> T readRaw(String key, RawInputStreamAndMetadataConsumer<T, EX> consumer) {
+        final HashedBlobStorage source = storage.forReading();
+        return source.transaction.execute(status -> {
+            final FullMetadata<EX> metadata = fullMetadata(source, key);
+            return source.readStored(metadata.backingStore.oid,
+                    is -> consumer.accept(is, metadata, storage.codec(metadata.backingStore)));
+        });
+    }
+
+    public void exportZip(String prefix, OutputStream out) {
+        final HashedBlobStorage source = storage.forReading();
+        source.transaction.execute(status -> {
+            try (final ZipWriter zip = new ZipWriter(new BufferedOutputStream(out))) {
+                for (FullMetadata<EX> file : listFullMetadataByPrefix(source, prefix)) {
+                    source.readStored(file.backingStore.oid, is -> {
+                        // gzip is deflate with a header, so the stored bytes can go straight into the zip
+                        if ("gzip".equals(storage.codec(file.backingStore))) {
+                            zip.putGzip(file.metadata.key, file.metadata.created, is,
+                                    file.backingStore.storedLength, file.backingStore.originalLength);
+                        } else {
+                            zip.put(file.metadata.key, file.metadata.created,
+                                    storage.filterFor(file.backingStore.codec).input(is));
+                        }
+                        return null;
+                    });
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("couldn't write archive", e);
+            }
+            return null;
         });
     }
 
     public void delete(String key) {
-        if (1 != storage.jdbc.update("DELETE FROM " + metadataTableName + " WHERE key=?", key)) {
+        if (1 != storage.jdbc.update("DELETE FROM " + metadataTableName + " WHERE key=?" + LIVE, key)) {
             throw new NoSuchElementException("couldn't delete key " + key + " as it didn't exist");
         }
+        storage.wrote();
     }
 
     public void deletePrefix(String prefix) {
         storage.jdbc.update("DELETE FROM " + metadataTableName + " WHERE key LIKE ?", prefix + "%");
+        storage.wrote();
+    }
+
+    // The copy is a new key, so doesn't expire, whatever the source does; as with store(), that's the default.
+    public void copy(String src, String dst) {
+        // FOR SHARE on the source row stops it being deleted (and hence the blob collected)
+        // before our new row, pointing at the same hash, is committed
+        final int inserted;
+        try {
+            inserted = storage.transaction.execute(status -> {
+                clearReplaceable(dst);
+                return storage.jdbc.update("INSERT INTO " + metadataTableName + " (key, created, hash, extra)" +
+                        " SELECT ?, now(), hash, extra FROM " + metadataTableName +
+                        " WHERE key=? AND hash IS NOT NULL" + LIVE + " FOR SHARE", dst, src);
+            });
+        } catch (DuplicateKeyException e) {
+            throw new IllegalStateException(dst + " already exists", e);
+        }
+
+        if (1 != inserted) {
+            throw new NoSuchElementException("couldn't copy key " + src + " as it didn't exist");
+        }
+        storage.wrote();
+    }
+
+    public void rename(String src, String dst) {
+        final int updated;
+        try {
+            updated = storage.transaction.execute(status -> {
+                clearReplaceable(dst);
+                return storage.jdbc.update("UPDATE " + metadataTableName + " SET key=?" +
+                        " WHERE key=? AND hash IS NOT NULL" + LIVE, dst, src);
+            });
+        } catch (DuplicateKeyException e) {
+            throw new IllegalStateException(dst + " already exists", e);
+        }
+
+        if (1 != updated) {
+            throw new NoSuchElementException("couldn't rename key " + src + " as it didn't exist");
+        }
+        storage.wrote();
+    }
+
+    // as with copy, the copies don't expire
+    public int copyPrefix(String srcPrefix, String dstPrefix) {
+        // the whole prefix is copied in one statement, so either every key is copied, or none are,
+        // and nothing under dstPrefix is cleared unless they are
+        final int copied;
+        try {
+            copied = storage.transaction.execute(status -> {
+                storage.jdbc.update("DELETE FROM " + metadataTableName + " WHERE key LIKE ?" + REPLACEABLE,
+                        dstPrefix + "%");
+                return storage.jdbc.update("INSERT INTO " + metadataTableName + " (key, created, hash, extra)" +
+                                " SELECT ? || substr(key, char_length(?) + 1), now(), hash, extra" +
+                                " FROM " + metadataTableName +
+                                " WHERE key LIKE ? AND hash IS NOT NULL" + LIVE + " FOR SHARE",
+                        dstPrefix, srcPrefix, srcPrefix + "%");
+            });
+        } catch (DuplicateKeyException e) {
+            throw new IllegalStateException("some keys under " + dstPrefix + " already exist", e);
+        }
+        storage.wrote();
+        return copied;
+    }
+
+    // An expired key, or one whose store never completed, can be replaced, as store() would, so its row
+    // mustn't get in the way.  A store still in progress holds its row locked; we wait, then leave it be.
+    private void clearReplaceable(String key) {
+        storage.jdbc.update("DELETE FROM " + metadataTableName + " WHERE key=?" + REPLACEABLE, key);
     }
 
     public long directoryApparentSize(String directory) {
-        final Long sum = storage.jdbc.queryForObject("SELECT SUM(stored_length)" +
+        final Long sum = storage.forReading().jdbc.queryForObject("SELECT SUM(stored_length)" +
                 " FROM " + storage.blobTableName +
                 " INNER JOIN " + metadataTableName + "" +
                 " ON (" + metadataTableName + ".hash=" + storage.blobTableName + ".hash)" +
-                " WHERE key LIKE ?", new Object[]{directory + "%"}, Long.class);
+                " WHERE key LIKE ?" + LIVE, new Object[]{directory + "%"}, Long.class);
         return null != sum ? sum : 0;
     }
 
     public boolean exists(String key) {
-        return storage.jdbc.queryForObject("SELECT EXISTS (SELECT NULL   FROM " + metadataTableName + " WHERE key=?)",
+        return storage.forReading().jdbc.queryForObject("SELECT EXISTS (SELECT NULL   FROM " + metadataTableName + " WHERE key=?" + LIVE + ")",
                 new Object[]{key},
                 Boolean.class);
     }
 
+    // deletes up to batchSize expired keys, skipping any which are locked; returns how many.
+    // Their blobs are left for collectGarbage, as with delete.
+    public int deleteExpired(int batchSize) {
+        final int deleted = storage.jdbc.update("DELETE FROM " + metadataTableName + " WHERE key IN (" +
+                "  SELECT key FROM " + metadataTableName + " WHERE expires_at <= now()" +
+                "    ORDER BY expires_at LIMIT ? FOR UPDATE SKIP LOCKED" +
+                ")", batchSize);
+        storage.wrote();
+        return deleted;
+    }
+
     public void collectGarbage() {
         storage.transaction.execute(status -> {
             storage.jdbc.query("SELECT loid FROM " + storage.blobTableName + " WHERE NOT EXISTS (" +
@@ -0,0 +1,236 @@
+package com.goeswhere.bloboperations;
+
+import com.goeswhere.bloboperations.util.Streams;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.ZipFile;
+
+public class BulkImporter<EX> {
+    private static final Log logger = LogFactory.getLog(BulkImporter.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final BlobStore<EX> store;
+    private final int threads;
+    private final int batchSize;
+
+    public BulkImporter(BlobStore<EX> store, int threads) {
+        this(store, threads, DEFAULT_BATCH_SIZE);
+    }
+
+    // each worker holds a connection from the store's DataSource while it works,
+    // so the DataSource should be a pool with at least this many connections
+    public BulkImporter(BlobStore<EX> store, int threads, int batchSize) {
+        this.store = store;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    public static class Result {
+        public final long uploaded;
+        public final long deduplicated;
+        public final long skipped;
+
+        public Result(long uploaded, long deduplicated, long skipped) {
+            this.uploaded = uploaded;
+            this.deduplicated = deduplicated;
+            this.skipped = skipped;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private static class Entry {
+        final String key;
+        final Source source;
+
+        Entry(String key, Source source) {
+            this.key = key;
+            this.source = source;
+        }
+    }
+
+    private static class Known {
+        final Entry entry;
+        final UUID hash;
+
+        Known(Entry entry, UUID hash) {
+            this.entry = entry;
+            this.hash = hash;
+        }
+    }
+
+    public Result importDirectory(Path root, String keyPrefix) throws IOException {
+        try (final Stream<Path> files = Files.walk(root)) {
+            return importEntries(files
+                    .filter(Files::isRegularFile)
+                    .map(path -> new Entry(keyPrefix + relativeKey(root, path), () -> Files.newInputStream(path)))
+                    .iterator());
+        }
+    }
+
+    public Result importZip(Path zip, String keyPrefix) throws IOException {
+        // ZipFile, unlike ZipInputStream, allows many entries to be open at once, so we can read in parallel
+        try (final ZipFile zipFile = new ZipFile(zip.toFile())) {
+            return importEntries(zipFile.stream()
+                    .filter(entry -> !entry.isDirectory())
+                    .map(entry -> new Entry(keyPrefix + entry.getName(), () -> zipFile.getInputStream(entry)))
+                    .iterator());
+        }
+    }
+
+    private static String relativeKey(Path root, Path path) {
+        return StreamSupport.stream(root.relativize(path).spliterator(), false)
+                .map(Path::toString)
+                .collect(Collectors.joining("/"));
+    }
+
+    private Result importEntries(Iterator<Entry> entries) {
+        final AtomicLong uploaded = new AtomicLong();
+        final AtomicLong deduplicated = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final List<Known> pending = new ArrayList<>();
+
+        // keys which are already stored are skipped, so a failed import can be resumed by just running it again
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        // bound the work queued up, so walking a huge tree doesn't fill memory with tasks
+        final Semaphore inFlight = new Semaphore(threads * 2);
+
+        try {
+            while (entries.hasNext() && null == failure.get()) {
+                final Entry entry = entries.next();
+                inFlight.acquireUninterruptibly();
+                pool.execute(() -> {
+                    try {
+                        if (store.bound(entry.key)) {
+                            skipped.incrementAndGet();
+                            return;
+                        }
+
+                        final UUID hash;
+                        try (final InputStream is = entry.source.open()) {
+                            hash = HashedBlobStorage.hash(is);
+                        }
+
+                        if (!store.storage.exists(hash)) {
+                            upload(entry);
+                            uploaded.incrementAndGet();
+                            return;
+                        }
+
+                        final List<Known> batch;
+                        synchronized (pending) {
+                            pending.add(new Known(entry, hash));
+                            batch = takeBatch(pending, batchSize);
+                        }
+
+                        if (null != batch) {
+                            deduplicated.addAndGet(link(batch, uploaded));
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        if (null == failure.get()) {
+            final List<Known> batch = takeBatch(pending, 1);
+            if (null != batch) {
+                deduplicated.addAndGet(link(batch, uploaded));
+            }
+        }
+
+        if (null != failure.get()) {
+            throw new IllegalStateException("import failed; it can be resumed by running it again", failure.get());
+        }
+
+        return new Result(uploaded.get(), deduplicated.get(), skipped.get());
+    }
+
+    private static List<Known> takeBatch(List<Known> pending, int minimum) {
+        if (pending.isEmpty() || pending.size() < minimum) {
+            return null;
+        }
+
+        final List<Known> batch = new ArrayList<>(pending);
+        pending.clear();
+        return batch;
+    }
+
+    private void upload(Entry entry) {
+        store.store(entry.key, os -> {
+            try (final InputStream is = entry.source.open()) {
+                Streams.copy(is, os);
+            }
+            return null;
+        });
+    }
+
+    // anything that can't be linked (e.g. the blob was collected since we checked) is uploaded instead
+    private long link(List<Known> batch, AtomicLong uploaded) {
+        final String extra = store.serialiseExtra.toString.apply(null);
+        final List<Object[]> args = new ArrayList<>(batch.size());
+        for (Known known : batch) {
+            args.add(new Object[]{known.entry.key, extra, known.hash, known.entry.key});
+        }
+
+        // FOR SHARE on the blob row stops the garbage collector removing it under us
+        final int[] inserted = store.storage.transaction.execute(status -> store.storage.jdbc.batchUpdate(
+                "INSERT INTO " + store.metadataTableName + " (key, created, hash, extra)" +
+                        " SELECT ?, now(), hash, " + store.extraParameter() + " FROM " + store.storage.blobTableName + " WHERE hash=?" +
+                        " AND NOT EXISTS (SELECT NULL FROM " + store.metadataTableName + " WHERE key=?)" +
+                        " FOR SHARE", args));
+
+        store.storage.wrote();
+
+        long linked = 0;
+        for (int i = 0; i < inserted.length; ++i) {
+            if (1 == inserted[i]) {
+                ++linked;
+                continue;
+            }
+
+            final Entry entry = batch.get(i).entry;
+            logger.info("couldn't link existing content, uploading instead: " + entry.key);
+            upload(entry);
+            uploaded.incrementAndGet();
+        }
+
+        return linked;
+    }
+}
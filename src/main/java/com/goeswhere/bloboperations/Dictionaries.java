@@ -0,0 +1,202 @@
+package com.goeswhere.bloboperations;
+
+import com.goeswhere.bloboperations.util.DictionaryTrainer;
+import com.goeswhere.bloboperations.util.Streams;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.JdbcOperations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Compression for small, similar blobs, e.g. JSON documents of a few KB, which gzip can barely shrink on their own.
+// Dictionaries are trained from a sample of the blobs under a key prefix, and stored, never changed, in a table.
+// Blobs are raw deflate with the dictionary preset, and no header; their codec names the dictionary's id.
+//
+// To write with the latest dictionary, and read whichever one each blob was written with:
+//   storage.registerCodecs(dictionaries::resolve);
+//   new HashedBlobStorage(jdbc, transactions, "blob", dictionaries.filter(dictionaries.latest("docs/")));
+public class Dictionaries {
+    private static final Log logger = LogFactory.getLog(Dictionaries.class);
+
+    public static final String DEFAULT_TABLE_NAME = "blob_dictionary";
+    public static final String CODEC_PREFIX = "deflate-dict:";
+    public static final int DEFAULT_SAMPLES = 100;
+
+    // only the start of each sampled blob is used; it's repetition between blobs we're after
+    public static final int MAX_SAMPLE_LENGTH = 16 * 1024;
+
+    private final JdbcOperations jdbc;
+    private final String tableName;
+    private final int level;
+
+    // dictionaries never change, so can be cached forever
+    private final Map<Integer, HashedBlobStorage.StorageFilter> filters = new ConcurrentHashMap<>();
+
+    public Dictionaries(JdbcOperations jdbc) {
+        this(jdbc, DEFAULT_TABLE_NAME, Deflater.BEST_COMPRESSION);
+    }
+
+    // level: as for Deflater; blobs are small, so the best compression is cheap
+    public Dictionaries(JdbcOperations jdbc, String tableName, int level) {
+        this.jdbc = jdbc;
+        this.tableName = tableName;
+        this.level = level;
+    }
+
+    // for HashedBlobStorage.registerCodecs; null for codecs which aren't ours, or dictionaries which don't exist
+    public HashedBlobStorage.StorageFilter resolve(String codec) {
+        if (!codec.startsWith(CODEC_PREFIX)) {
+            return null;
+        }
+
+        final int id;
+        try {
+            id = Integer.parseInt(codec.substring(CODEC_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        return filters.computeIfAbsent(id, this::load);
+    }
+
+    public HashedBlobStorage.StorageFilter filter(int id) {
+        final HashedBlobStorage.StorageFilter filter = filters.computeIfAbsent(id, this::load);
+        if (null == filter) {
+            throw new NoSuchElementException("no dictionary " + id + " in " + tableName);
+        }
+        return filter;
+    }
+
+    // the id of the most recently trained dictionary for this prefix
+    public int latest(String prefix) {
+        final List<Integer> ids = jdbc.queryForList("SELECT id FROM " + tableName +
+                " WHERE prefix=? ORDER BY id DESC LIMIT 1", new Object[]{prefix}, Integer.class);
+        if (ids.isEmpty()) {
+            throw new NoSuchElementException("no dictionary has been trained for " + prefix);
+        }
+        return ids.get(0);
+    }
+
+    private HashedBlobStorage.StorageFilter load(int id) {
+        final List<byte[]> content = jdbc.queryForList("SELECT content FROM " + tableName + " WHERE id=?",
+                new Object[]{id}, byte[].class);
+        if (content.isEmpty()) {
+            return null;
+        }
+        return dictionaryFilter(CODEC_PREFIX + id, content.get(0), level);
+    }
+
+    static HashedBlobStorage.StorageFilter dictionaryFilter(String codec, byte[] dictionary, int level) {
+        return new HashedBlobStorage.StorageFilter() {
+            @Override
+            public OutputStream output(OutputStream out) throws IOException {
+                final Deflater deflater = new Deflater(level, true);
+                deflater.setDictionary(dictionary);
+                return new DeflaterOutputStream(out, deflater) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            // we made it, so it isn't ended for us
+                            def.end();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public InputStream input(InputStream in) throws IOException {
+                final Inflater inflater = new Inflater(true);
+                inflater.setDictionary(dictionary);
+                return new InflaterInputStream(in, inflater) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inf.end();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public String codec() {
+                return codec;
+            }
+        };
+    }
+
+    public int train(BlobStore<?> store, String prefix) {
+        return train(store, prefix, DEFAULT_SAMPLES, DictionaryTrainer.MAX_SIZE);
+    }
+
+    // Samples up to samples blobs under the prefix, and stores a dictionary of up to size bytes
+    // trained from them.  Returns its id.
+    public int train(BlobStore<?> store, String prefix, int samples, int size) {
+        final HashedBlobStorage storage = store.storage;
+        final List<byte[]> sampled = storage.transaction.execute(status -> {
+            // FOR SHARE stops the keys being deleted, so their blobs can't be collected while we read them
+            final List<UUID> hashes = storage.jdbc.queryForList("SELECT hash FROM " + store.metadataTableName +
+                            " WHERE key LIKE ? AND hash IS NOT NULL" + BlobStore.LIVE +
+                            " ORDER BY random() LIMIT ? FOR SHARE",
+                    new Object[]{prefix + "%", samples}, UUID.class);
+
+            final List<byte[]> read = new ArrayList<>();
+            for (UUID hash : new LinkedHashSet<>(hashes)) {
+                read.add(storage.read(hash, Dictionaries::start));
+            }
+            return read;
+        });
+
+        if (sampled.isEmpty()) {
+            throw new IllegalStateException("there are no blobs under " + prefix + " to train from");
+        }
+
+        final byte[] dictionary = DictionaryTrainer.train(sampled, size);
+        if (0 == dictionary.length) {
+            throw new IllegalStateException("the " + sampled.size() + " blobs sampled from " + prefix +
+                    " have nothing in common");
+        }
+
+        final int id = jdbc.queryForObject("INSERT INTO " + tableName + " (prefix, created, content)" +
+                " VALUES (?, now(), ?) RETURNING id", Integer.class, prefix, dictionary);
+        logger.info("trained dictionary " + id + " for " + prefix + ", of " + dictionary.length + " bytes, from " +
+                sampled.size() + " blobs");
+        return id;
+    }
+
+    private static byte[] start(InputStream in) throws IOException {
+        final byte[] buf = new byte[Math.min(MAX_SAMPLE_LENGTH, Streams.BUFFER_SIZE)];
+        int filled = 0;
+        int read;
+        while (filled < buf.length && -1 != (read = in.read(buf, filled, buf.length - filled))) {
+            filled += read;
+        }
+        return Arrays.copyOf(buf, filled);
+    }
+
+    // Trains a new dictionary for the prefix, then rewrites the blobs under it which that makes smaller.
+    // The store's storage must already have registerCodecs(this::resolve), as should all its readers;
+    // the Recompressor refuses to start otherwise.
+    public Recompressor.Result retrainAndRecompress(BlobStore<?> store, String prefix, long bytesPerSecond) {
+        final int id = train(store, prefix);
+        return new Recompressor(store, filter(id), bytesPerSecond)
+                .recompress(Recompressor.Selection.notInTargetCodec().prefix(prefix).smallerOnly());
+    }
+}
@@ -0,0 +1,64 @@
+package com.goeswhere.bloboperations;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Deletes expired keys in small batches, each its own short transaction, so the sweep never holds
+// many locks at once, or for long.  Then, optionally, collects the blobs which nothing points at any more.
+public class ExpirySweeper implements Runnable {
+    private static final Log logger = LogFactory.getLog(ExpirySweeper.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final BlobStore<?> store;
+    private final int batchSize;
+    private final boolean collectGarbage;
+
+    public ExpirySweeper(BlobStore<?> store) {
+        this(store, DEFAULT_BATCH_SIZE, true);
+    }
+
+    public ExpirySweeper(BlobStore<?> store, int batchSize, boolean collectGarbage) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.collectGarbage = collectGarbage;
+    }
+
+    // returns how many keys were deleted
+    public long sweep() {
+        long deleted = 0;
+        int batch;
+        do {
+            batch = store.deleteExpired(batchSize);
+            deleted += batch;
+        } while (batch == batchSize && !Thread.currentThread().isInterrupted());
+
+        if (collectGarbage && deleted > 0) {
+            store.collectGarbage();
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public void run() {
+        try {
+            final long deleted = sweep();
+            if (deleted > 0) {
+                logger.info("deleted " + deleted + " expired keys");
+            }
+        } catch (RuntimeException e) {
+            // keep going; a scheduled task which throws is never run again
+            logger.warn("couldn't sweep expired keys", e);
+        }
+    }
+
+    public ScheduledFuture<?> schedule(ScheduledExecutorService executor, Duration every) {
+        return executor.scheduleWithFixedDelay(this, 0, every.toMillis(), TimeUnit.MILLISECONDS);
+    }
+}
@@ -8,10 +8,18 @@ public class HashedBlob {
     public final long originalLength;
     final long oid;
 
+    // the StorageFilter's codec it was written with; null if it isn't known
+    public final String codec;
+
     public HashedBlob(UUID uuid, long storedLength, long originalLength, long oid) {
+        this(uuid, storedLength, originalLength, oid, null);
+    }
+
+    public HashedBlob(UUID uuid, long storedLength, long originalLength, long oid, String codec) {
         this.uuid = uuid;
         this.storedLength = storedLength;
         this.originalLength = originalLength;
         this.oid = oid;
+        this.codec = codec;
     }
 }
@@ -4,12 +4,14 @@ import com.goeswhere.bloboperations.util.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.postgresql.PGConnection;
+import org.postgresql.largeobject.BlobInputStream;
 import org.postgresql.largeobject.LargeObject;
 import org.postgresql.largeobject.LargeObjectManager;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.support.TransactionOperations;
 import org.springframework.transaction.support.TransactionTemplate;
 
@@ -23,7 +25,15 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -32,32 +42,127 @@ public class HashedBlobStorage {
 
     public static final String DEFAULT_TABLE_NAME = "blob";
 
-    public static final StorageFilter GZIP_STORAGE_FILTER = new StorageFilter() {
-        @Override
-        public OutputStream output(OutputStream out) throws IOException {
-            return new GZIPOutputStream(out);
-        }
+    public static final StorageFilter GZIP_STORAGE_FILTER = gzip(Deflater.DEFAULT_COMPRESSION);
 
+    public static final StorageFilter IDENTITY_STORAGE_FILTER = new StorageFilter() {
         @Override
-        public InputStream input(InputStream in) throws IOException {
-            return new GZIPInputStream(in);
+        public String codec() {
+            return "identity";
         }
     };
 
+    // level: as for Deflater; all levels are the same codec, as they're read the same way
+    public static StorageFilter gzip(int level) {
+        return new StorageFilter() {
+            @Override
+            public OutputStream output(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+
+            @Override
+            public InputStream input(InputStream in) throws IOException {
+                return new GZIPInputStream(in);
+            }
+
+            @Override
+            public String codec() {
+                return "gzip";
+            }
+        };
+    }
+
     final JdbcOperations jdbc;
     final TransactionOperations transaction;
     final String blobTableName;
     final StorageFilter storageFilter;
 
+    // how to read blobs written in codecs other than storageFilter's, e.g. before it was changed;
+    // shared with our standby
+    private final Codecs codecs;
+
+    private static class Codecs {
+        final Map<String, StorageFilter> byName = new ConcurrentHashMap<>();
+
+        // for families of codecs, e.g. one per dictionary; they return null for codecs which aren't theirs
+        final List<Function<String, StorageFilter>> resolvers = new CopyOnWriteArrayList<>();
+
+        StorageFilter find(String codec) {
+            final StorageFilter known = byName.get(codec);
+            if (null != known) {
+                return known;
+            }
+
+            for (Function<String, StorageFilter> resolver : resolvers) {
+                final StorageFilter resolved = resolver.apply(codec);
+                if (null != resolved) {
+                    byName.put(codec, resolved);
+                    return resolved;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    // appended to reads to stop the rows being deleted under us; standbys can't take row locks
+    final String shareLock;
+
+    // where reads go, if not to us; null if there's no standby
+    private final HashedBlobStorage standby;
+    private final boolean readYourWrites;
+
+    // the primary's WAL position after our most recent write, as bytes; 0 if the standby is known to have it
+    private final AtomicLong lastWriteLsn = new AtomicLong();
+
+    // null if reads aren't pipelined
+    private final ReadAhead readAhead;
+
+    private static class ReadAhead {
+        final Executor executor;
+        final int chunkSize;
+        final int window;
+
+        ReadAhead(Executor executor, int chunkSize, int window) {
+            this.executor = executor;
+            this.chunkSize = chunkSize;
+            this.window = window;
+        }
+    }
+
     public HashedBlobStorage(
             JdbcOperations jdbc,
             TransactionOperations transaction,
             String blobTableName,
             StorageFilter storageFilter) {
+        this(jdbc, transaction, blobTableName, storageFilter, new Codecs(), " FOR SHARE", null, false,
+                null);
+        registerCodec(GZIP_STORAGE_FILTER);
+        registerCodec(IDENTITY_STORAGE_FILTER);
+    }
+
+    private HashedBlobStorage(
+            JdbcOperations jdbc,
+            TransactionOperations transaction,
+            String blobTableName,
+            StorageFilter storageFilter,
+            Codecs codecs,
+            String shareLock,
+            HashedBlobStorage standby,
+            boolean readYourWrites,
+            ReadAhead readAhead) {
         this.jdbc = jdbc;
         this.transaction = transaction;
         this.blobTableName = blobTableName;
         this.storageFilter = storageFilter;
+        this.codecs = codecs;
+        this.shareLock = shareLock;
+        this.standby = standby;
+        this.readYourWrites = readYourWrites;
+        this.readAhead = readAhead;
     }
 
     public static HashedBlobStorage forDatasource(DataSource ds) {
@@ -71,6 +176,106 @@ public class HashedBlobStorage {
                 GZIP_STORAGE_FILTER);
     }
 
+    public HashedBlobStorage withStandby(DataSource standby, boolean readYourWrites) {
+        // we can't lock the metadata row on a standby, so instead make sure it's read
+        // from the same snapshot as the blob, which will then still be there
+        final TransactionTemplate transaction = new TransactionTemplate(new DataSourceTransactionManager(standby));
+        transaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        transaction.setReadOnly(true);
+        return withStandby(new JdbcTemplate(standby), transaction, readYourWrites);
+    }
+
+    // readYourWrites: if the standby hasn't yet replayed our last write, read from the primary instead
+    public HashedBlobStorage withStandby(
+            JdbcOperations standbyJdbc,
+            TransactionOperations standbyTransaction,
+            boolean readYourWrites) {
+        return new HashedBlobStorage(jdbc, transaction, blobTableName, storageFilter, codecs, shareLock,
+                new HashedBlobStorage(standbyJdbc, standbyTransaction, blobTableName, storageFilter, codecs,
+                        "", null, false, readAhead),
+                readYourWrites, readAhead);
+    }
+
+    // Reads fetch the large object, and decode it, on background threads, up to window chunks ahead of the
+    // consumer, so round trips to the database overlap with decompression, and with the consumer's own work.
+    // Each read uses two of the executor's threads at once, so it shouldn't be a small fixed pool.
+    public HashedBlobStorage withReadAhead(Executor executor, int chunkSize, int window) {
+        final ReadAhead readAhead = new ReadAhead(executor, chunkSize, window);
+        return new HashedBlobStorage(jdbc, transaction, blobTableName, storageFilter, codecs, shareLock,
+                null == standby ? null : new HashedBlobStorage(standby.jdbc, standby.transaction, blobTableName,
+                        storageFilter, codecs, "", null, false, readAhead),
+                readYourWrites, readAhead);
+    }
+
+    // makes blobs written by this filter readable, whatever our own filter is
+    public HashedBlobStorage registerCodec(StorageFilter filter) {
+        codecs.byName.put(filter.codec(), filter);
+        return this;
+    }
+
+    // resolver is asked about codecs which haven't been registered; it returns null for those it doesn't know
+    public HashedBlobStorage registerCodecs(Function<String, StorageFilter> resolver) {
+        codecs.resolvers.add(resolver);
+        return this;
+    }
+
+    StorageFilter filterFor(String codec) {
+        if (null == codec) {
+            throw new IllegalStateException("a blob has no codec recorded; see the README for filling them in");
+        }
+
+        if (codec.equals(storageFilter.codec())) {
+            return storageFilter;
+        }
+
+        final StorageFilter filter = codecs.find(codec);
+        if (null == filter) {
+            throw new IllegalStateException("no StorageFilter is registered for codec " + codec);
+        }
+        return filter;
+    }
+
+    // guessing would silently decode with the wrong filter, once the storage's filter has been changed
+    String codec(HashedBlob blob) {
+        if (null == blob.codec) {
+            throw new IllegalStateException("blob " + blob.uuid + " has no codec recorded; see the README" +
+                    " for filling them in");
+        }
+        return blob.codec;
+    }
+
+    HashedBlobStorage forReading() {
+        if (null == standby) {
+            return this;
+        }
+
+        final long lsn = lastWriteLsn.get();
+        if (!readYourWrites || 0 == lsn) {
+            return standby;
+        }
+
+        // null, i.e. not caught up, if the "standby" isn't actually in recovery
+        final Boolean caughtUp = standby.jdbc.queryForObject(
+                "SELECT pg_last_wal_replay_lsn() - '0/0'::pg_lsn >= ?", new Object[]{lsn}, Boolean.class);
+
+        if (!Boolean.TRUE.equals(caughtUp)) {
+            return this;
+        }
+
+        lastWriteLsn.compareAndSet(lsn, 0);
+        return standby;
+    }
+
+    // must be called after the write has committed, so the commit is before the position we record
+    void wrote() {
+        if (!readYourWrites) {
+            return;
+        }
+
+        final long lsn = jdbc.queryForObject("SELECT pg_current_wal_lsn() - '0/0'::pg_lsn", Long.class);
+        lastWriteLsn.accumulateAndGet(lsn, Math::max);
+    }
+
     public interface StorageFilter {
         default OutputStream output(OutputStream out) throws IOException {
             return out;
@@ -79,6 +284,11 @@ public class HashedBlobStorage {
         default InputStream input(InputStream in) throws IOException {
             return in;
         }
+
+        // the name of the format that output() writes; matches the HTTP Content-Encoding where there is one.
+        // It's recorded against every blob, and used to find the filter to read it back with, so it must be
+        // unique to the format, and never change.
+        String codec();
     }
 
     public HashedBlob insert(VoidOutputStreamConsumer stream) {
@@ -89,44 +299,89 @@ public class HashedBlobStorage {
                 }
             });
 
-            // eliminate the race condition on the following "where not exists" clause by...
-            // locking the whole table for write.  Not ideal, but we're expecting the transaction to
-            // terminate quickly after this point, and it's better than random, hard to reproduce errors
-            jdbc.execute("LOCK TABLE " + blobTableName + " IN SHARE ROW EXCLUSIVE MODE");
-
-            final int updated = jdbc.update(
-                    "INSERT INTO " + blobTableName + " " +
-                            "(hash, stored_length, original_length, loid)" +
-                            "  SELECT ?, ?, ?, ? WHERE NOT EXISTS (" +
-                            "    SELECT NULL FROM " + blobTableName + " WHERE hash=?" +
-                            ")",
-                    stored.uuid, stored.storedLength, stored.originalLength, stored.oid, stored.uuid);
-
-            if (updated != 1) {
-                logger.info("we didn't actually get to do the insert; must have already existed: " + stored.uuid);
-                unlink(stored.oid);
-            }
-
+            record(stored);
             return stored;
         });
     }
 
+    // must be called inside a transaction; if this content is already stored, the new copy is thrown away
+    void record(HashedBlob stored) {
+        // eliminate the race condition on the following "where not exists" clause by...
+        // locking the whole table for write.  Not ideal, but we're expecting the transaction to
+        // terminate quickly after this point, and it's better than random, hard to reproduce errors
+        jdbc.execute("LOCK TABLE " + blobTableName + " IN SHARE ROW EXCLUSIVE MODE");
+
+        final int updated = jdbc.update(
+                "INSERT INTO " + blobTableName + " " +
+                        "(hash, stored_length, original_length, loid, codec)" +
+                        "  SELECT ?, ?, ?, ?, ? WHERE NOT EXISTS (" +
+                        "    SELECT NULL FROM " + blobTableName + " WHERE hash=?" +
+                        ")",
+                stored.uuid, stored.storedLength, stored.originalLength, stored.oid, codec(stored), stored.uuid);
+
+        if (updated != 1) {
+            logger.info("we didn't actually get to do the insert; must have already existed: " + stored.uuid);
+            unlink(stored.oid);
+        }
+    }
+
+    // writes into a large object which has already been created in this transaction, but doesn't record it
+    HashedBlob write(long oid, VoidOutputStreamConsumer stream) {
+        return jdbc.execute((Connection conn) -> {
+            try (final NewLargeObject largeObject = new NewLargeObject(api(conn), oid)) {
+                return writeGeneratingMeta(stream, largeObject);
+            }
+        });
+    }
+
     public <T> T read(UUID uuid, InputStreamConsumer<T> consumer) throws IncorrectResultSizeDataAccessException {
         return transaction.execute(status -> {
-            final long oid = jdbc.queryForObject(
-                    "SELECT loid FROM " + blobTableName + " WHERE hash=?",
-                    new Object[]{uuid}, Long.class);
-            return jdbc.execute((Connection conn) -> {
-                final LargeObjectManager pgLOManager = api(conn);
-                final LargeObject object = pgLOManager.open(oid, LargeObjectManager.READ);
-                try (final InputStream inputStream = storageFilter.input(object.getInputStream())) {
-                    return consumer.accept(inputStream);
-                } catch (IOException e) {
-                    throw new IllegalStateException("callee's code threw while trying to read", e);
-                } finally {
-                    object.close();
-                }
-            });
+            final HashedBlob blob = jdbc.queryForObject(
+                    "SELECT loid, codec FROM " + blobTableName + " WHERE hash=?",
+                    new Object[]{uuid}, (rs, underscore) -> new HashedBlob(uuid, 0, 0, rs.getLong("loid"),
+                            rs.getString("codec")));
+            return read(blob.oid, blob.codec, consumer);
+        });
+    }
+
+    <T> T read(long oid, String codec, InputStreamConsumer<T> consumer) {
+        final StorageFilter filter = filterFor(codec);
+        return readStored(oid, stored -> {
+            try (final InputStream inputStream = null == readAhead
+                    ? filter.input(stored)
+                    : new ReadAheadInputStream(filter.input(stored), readAhead.executor, readAhead.chunkSize,
+                    readAhead.window)) {
+                return consumer.accept(inputStream);
+            }
+        });
+    }
+
+    // the bytes as they are in the database, i.e. still in the blob's codec
+    public <T> T readRaw(UUID uuid, InputStreamConsumer<T> consumer) throws IncorrectResultSizeDataAccessException {
+        return transaction.execute(status -> readStored(loid(uuid), consumer));
+    }
+
+    private long loid(UUID uuid) {
+        return jdbc.queryForObject(
+                "SELECT loid FROM " + blobTableName + " WHERE hash=?",
+                new Object[]{uuid}, Long.class);
+    }
+
+    <T> T readStored(long oid, InputStreamConsumer<T> consumer) {
+        return jdbc.execute((Connection conn) -> {
+            final LargeObjectManager pgLOManager = api(conn);
+            final LargeObject object = pgLOManager.open(oid, LargeObjectManager.READ);
+            // the driver's own stream only fetches a few KB per round trip
+            try (final InputStream inputStream = null == readAhead
+                    ? object.getInputStream()
+                    : new ReadAheadInputStream(new BlobInputStream(object, readAhead.chunkSize), readAhead.executor,
+                    readAhead.chunkSize, readAhead.window)) {
+                return consumer.accept(inputStream);
+            } catch (IOException e) {
+                throw new IllegalStateException("callee's code threw while trying to read", e);
+            } finally {
+                object.close();
+            }
         });
     }
 
@@ -149,7 +404,7 @@ public class HashedBlobStorage {
         });
     }
 
-    private void unlink(long storageOid) {
+    void unlink(long storageOid) {
         if (1 != jdbc.queryForObject("SELECT lo_unlink(?)", new Object[]{storageOid}, Integer.class)) {
             throw new IllegalStateException("couldn't delete object " + storageOid);
         }
@@ -175,7 +430,8 @@ public class HashedBlobStorage {
                         uuid(digest.digest()),
                         countingToDb.getCount(),
                         countingFromCaller.getCount(),
-                        largeObject.getOid());
+                        largeObject.getOid(),
+                        storageFilter.codec());
 
             } catch (IOException e) {
                 throw new IllegalStateException("couldn't construct blob", e);
@@ -183,7 +439,17 @@ public class HashedBlobStorage {
         });
     }
 
-    private static MessageDigest digest() {
+    static UUID hash(InputStream in) throws IOException {
+        final MessageDigest digest = digest();
+        final byte[] buf = new byte[Streams.BUFFER_SIZE];
+        int read;
+        while (-1 != (read = in.read(buf))) {
+            digest.update(buf, 0, read);
+        }
+        return uuid(digest.digest());
+    }
+
+    static MessageDigest digest() {
         try {
             return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
@@ -191,11 +457,11 @@ public class HashedBlobStorage {
         }
     }
 
-    private static LargeObjectManager api(Connection conn) throws SQLException {
+    static LargeObjectManager api(Connection conn) throws SQLException {
         return conn.unwrap(PGConnection.class).getLargeObjectAPI();
     }
 
-    private static UUID uuid(byte[] bytes) {
+    static UUID uuid(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
         return new UUID(buffer.getLong(), buffer.getLong());
     }
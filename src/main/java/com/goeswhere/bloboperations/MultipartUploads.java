@@ -0,0 +1,316 @@
+package com.goeswhere.bloboperations;
+
+import com.goeswhere.bloboperations.util.BlockCloseOutputStream;
+import com.goeswhere.bloboperations.util.CountingOutputStream;
+import com.goeswhere.bloboperations.util.NewLargeObject;
+import com.goeswhere.bloboperations.util.Streams;
+import com.goeswhere.bloboperations.util.SyncFlushDeflaterOutputStream;
+import com.goeswhere.bloboperations.util.VoidOutputStreamConsumer;
+import org.postgresql.largeobject.LargeObjectManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Uploads which are written in numbered parts, possibly in parallel on different connections,
+// then assembled into a single blob.  Each part is committed as it's written, so a failure only
+// loses the part that was in progress.
+public class MultipartUploads<EX> {
+    public static final String DEFAULT_UPLOAD_TABLE_NAME = "upload";
+    public static final String DEFAULT_PART_TABLE_NAME = "upload_part";
+
+    // how much lo_get/lo_put copies at once, when assembling on the server
+    private static final int COPY_CHUNK = 16 * 1024 * 1024;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0};
+
+    private final BlobStore<EX> store;
+    private final HashedBlobStorage storage;
+    private final String uploadTableName;
+    private final String partTableName;
+
+    // gzip output can be assembled on the server; anything else has to be downloaded and re-written
+    private final boolean gzip;
+
+    public MultipartUploads(BlobStore<EX> store) {
+        this(store, DEFAULT_UPLOAD_TABLE_NAME, DEFAULT_PART_TABLE_NAME);
+    }
+
+    public MultipartUploads(BlobStore<EX> store, String uploadTableName, String partTableName) {
+        this.store = store;
+        this.storage = store.storage;
+        this.uploadTableName = uploadTableName;
+        this.partTableName = partTableName;
+        this.gzip = "gzip".equals(storage.storageFilter.codec());
+    }
+
+    private static class Part {
+        final int number;
+        final long storedLength;
+        final long originalLength;
+        final long oid;
+
+        Part(int number, long storedLength, long originalLength, long oid) {
+            this.number = number;
+            this.storedLength = storedLength;
+            this.originalLength = originalLength;
+            this.oid = oid;
+        }
+    }
+
+    public UUID begin(String key) {
+        store.failIfBound(key);
+
+        final UUID upload = UUID.randomUUID();
+        storage.jdbc.update("INSERT INTO " + uploadTableName + " (id, key, created) VALUES (?, ?, now())",
+                upload, key);
+        return upload;
+    }
+
+    // parts are numbered from 1; uploading a part again replaces it
+    public void uploadPart(UUID upload, int part, VoidOutputStreamConsumer data) {
+        if (part < 1) {
+            throw new IllegalArgumentException("parts are numbered from 1: " + part);
+        }
+
+        storage.transaction.execute(status -> {
+            // FOR SHARE stops the upload being completed or aborted under us
+            storage.jdbc.queryForObject("SELECT key FROM " + uploadTableName + " WHERE id=? FOR SHARE",
+                    new Object[]{upload}, String.class);
+
+            storage.jdbc.query("SELECT loid FROM " + partTableName + " WHERE upload=? AND part=? FOR UPDATE",
+                    new Object[]{upload, part}, (rs, underscore) -> rs.getLong("loid"))
+                    .forEach(storage::unlink);
+            storage.jdbc.update("DELETE FROM " + partTableName + " WHERE upload=? AND part=?", upload, part);
+
+            final Part written = storage.jdbc.execute((Connection conn) -> {
+                try (final NewLargeObject largeObject = new NewLargeObject(HashedBlobStorage.api(conn))) {
+                    return writePart(part, data, largeObject);
+                }
+            });
+
+            storage.jdbc.update("INSERT INTO " + partTableName +
+                            " (upload, part, stored_length, original_length, loid, created)" +
+                            " VALUES (?, ?, ?, ?, ?, now())",
+                    upload, part, written.storedLength, written.originalLength, written.oid);
+            return null;
+        });
+    }
+
+    private Part writePart(int part, VoidOutputStreamConsumer data, NewLargeObject largeObject) throws SQLException {
+        return largeObject.write(dbOs -> {
+            try (final CountingOutputStream countingToDb = new CountingOutputStream(new BlockCloseOutputStream(dbOs))) {
+                final long originalLength;
+                try (final CountingOutputStream countingFromCaller = new CountingOutputStream(gzip
+                        ? new SyncFlushDeflaterOutputStream(countingToDb)
+                        : storage.storageFilter.output(countingToDb))) {
+                    data.accept(countingFromCaller);
+                    originalLength = countingFromCaller.getCount();
+                }
+
+                // only now has the compressor written everything out
+                return new Part(part, countingToDb.getCount(), originalLength, largeObject.getOid());
+            }
+        });
+    }
+
+    public List<Integer> parts(UUID upload) {
+        return storage.jdbc.queryForList("SELECT part FROM " + partTableName + " WHERE upload=? ORDER BY part",
+                new Object[]{upload}, Integer.class);
+    }
+
+    // parts must be numbered 1 to partCount, with none missing
+    public void complete(UUID upload, int partCount, EX extra) {
+        final String key = storage.jdbc.queryForObject("SELECT key FROM " + uploadTableName + " WHERE id=?",
+                new Object[]{upload}, String.class);
+
+        do {
+            store.createKeyRow(key);
+        } while (!complete(upload, partCount, extra, key));
+
+        storage.wrote();
+    }
+
+    // false if the key's row went before we could lock it, so needs creating again
+    private boolean complete(UUID upload, int partCount, EX extra, String key) {
+        return storage.transaction.execute(status -> {
+            // FOR UPDATE waits for any parts still being written
+            storage.jdbc.queryForObject("SELECT key FROM " + uploadTableName + " WHERE id=? FOR UPDATE",
+                    new Object[]{upload}, String.class);
+
+            if (!store.lockMissingKey(key)) {
+                return false;
+            }
+
+            final List<Part> parts = storage.jdbc.query(
+                    "SELECT part, stored_length, original_length, loid FROM " + partTableName +
+                            " WHERE upload=? ORDER BY part",
+                    new Object[]{upload}, (rs, underscore) -> new Part(
+                            rs.getInt("part"),
+                            rs.getLong("stored_length"),
+                            rs.getLong("original_length"),
+                            rs.getLong("loid")));
+
+            for (int i = 0; i < parts.size(); ++i) {
+                if (parts.get(i).number != i + 1) {
+                    throw new IllegalStateException("part " + (i + 1) + " of " + upload + " is missing");
+                }
+            }
+
+            if (parts.size() != partCount) {
+                throw new IllegalStateException("expected " + partCount + " parts, but " + upload +
+                        " has " + parts.size());
+            }
+
+            final UUID hash = gzip ? assemble(parts) : rewrite(parts);
+
+            store.bind(key, hash, extra, null);
+            delete(upload, parts);
+            return true;
+        });
+    }
+
+    // the hash has to be computed from the whole of the data, so we do have to read it all back,
+    // but only in its compressed form; the blob itself is then built on the server
+    private UUID assemble(List<Part> parts) {
+        final MessageDigest digest = HashedBlobStorage.digest();
+        final CRC32 crc = new CRC32();
+        long originalLength = 0;
+
+        try (final InputStream in = new InflaterInputStream(
+                new SequenceInputStream(new PartsThenFinalBlock(parts)), new Inflater(true), Streams.BUFFER_SIZE)) {
+            final byte[] buf = new byte[Streams.BUFFER_SIZE];
+            int read;
+            while (-1 != (read = in.read(buf))) {
+                digest.update(buf, 0, read);
+                crc.update(buf, 0, read);
+                originalLength += read;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("couldn't read back parts", e);
+        }
+
+        final UUID hash = HashedBlobStorage.uuid(digest.digest());
+
+        // FOR SHARE stops it being collected before our metadata row is committed
+        if (!storage.jdbc.queryForList("SELECT hash FROM " + storage.blobTableName + " WHERE hash=? FOR SHARE",
+                new Object[]{hash}, UUID.class).isEmpty()) {
+            return hash;
+        }
+
+        final long oid = storage.jdbc.queryForObject("SELECT lo_create(0)", Long.class);
+        long offset = 0;
+
+        offset += put(oid, offset, GZIP_HEADER);
+
+        for (Part part : parts) {
+            for (long done = 0; done < part.storedLength; done += COPY_CHUNK) {
+                storage.jdbc.queryForObject("SELECT 1 FROM lo_put(?, ?, lo_get(?, ?, ?))", Integer.class,
+                        oid, offset + done, part.oid, done, (int) Math.min(COPY_CHUNK, part.storedLength - done));
+            }
+            offset += part.storedLength;
+        }
+
+        offset += put(oid, offset, SyncFlushDeflaterOutputStream.FINAL_BLOCK);
+
+        final ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt((int) originalLength);
+        offset += put(oid, offset, trailer.array());
+
+        storage.record(new HashedBlob(hash, offset, originalLength, oid, "gzip"));
+        return hash;
+    }
+
+    private long put(long oid, long offset, byte[] data) {
+        storage.jdbc.queryForObject("SELECT 1 FROM lo_put(?, ?, ?)", Integer.class, oid, offset, data);
+        return data.length;
+    }
+
+    // opens each part's large object as it's needed, so they're not all open at once
+    private class PartsThenFinalBlock implements Enumeration<InputStream> {
+        private final Iterator<Part> parts;
+        private boolean finished;
+
+        PartsThenFinalBlock(List<Part> parts) {
+            this.parts = parts.iterator();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return !finished;
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (!parts.hasNext()) {
+                finished = true;
+                return new ByteArrayInputStream(SyncFlushDeflaterOutputStream.FINAL_BLOCK);
+            }
+
+            final long oid = parts.next().oid;
+            return storage.jdbc.execute((Connection conn) ->
+                    HashedBlobStorage.api(conn).open(oid, LargeObjectManager.READ).getInputStream());
+        }
+    }
+
+    private UUID rewrite(List<Part> parts) {
+        return storage.insert(os -> {
+            for (Part part : parts) {
+                storage.readStored(part.oid, stored -> {
+                    try (final InputStream in = storage.storageFilter.input(stored)) {
+                        return Streams.copy(in, os);
+                    }
+                });
+            }
+        }).uuid;
+    }
+
+    public void abort(UUID upload) {
+        storage.transaction.execute(status -> {
+            storage.jdbc.queryForObject("SELECT key FROM " + uploadTableName + " WHERE id=? FOR UPDATE",
+                    new Object[]{upload}, String.class);
+
+            delete(upload, storage.jdbc.query("SELECT part, loid FROM " + partTableName + " WHERE upload=?",
+                    new Object[]{upload}, (rs, underscore) -> new Part(rs.getInt("part"), 0, 0, rs.getLong("loid"))));
+            return null;
+        });
+    }
+
+    private void delete(UUID upload, List<Part> parts) {
+        for (Part part : parts) {
+            storage.unlink(part.oid);
+        }
+        storage.jdbc.update("DELETE FROM " + partTableName + " WHERE upload=?", upload);
+        storage.jdbc.update("DELETE FROM " + uploadTableName + " WHERE id=?", upload);
+    }
+
+    // aborts uploads which nothing has happened to for longer than abandonedAfter, i.e. which were started,
+    // and had their last part uploaded, before then; returns how many
+    public int collectGarbage(Duration abandonedAfter) {
+        final List<UUID> abandoned = storage.jdbc.queryForList("SELECT id FROM " + uploadTableName + " u" +
+                        " WHERE GREATEST(u.created, (SELECT MAX(p.created) FROM " + partTableName +
+                        " p WHERE p.upload=u.id)) < now() - ? * INTERVAL '1 millisecond'",
+                new Object[]{abandonedAfter.toMillis()}, UUID.class);
+
+        for (UUID upload : abandoned) {
+            abort(upload);
+        }
+
+        return abandoned.size();
+    }
+}
@@ -0,0 +1,9 @@
+package com.goeswhere.bloboperations;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@FunctionalInterface
+public interface RawInputStreamAndMetadataConsumer<T, EX> {
+    T accept(InputStream storedBytes, FullMetadata<EX> metadata, String codec) throws IOException;
+}
@@ -0,0 +1,321 @@
+package com.goeswhere.bloboperations;
+
+import com.goeswhere.bloboperations.util.BlockCloseOutputStream;
+import com.goeswhere.bloboperations.util.CountingOutputStream;
+import com.goeswhere.bloboperations.util.NewLargeObject;
+import com.goeswhere.bloboperations.util.RateLimitedInputStream;
+import com.goeswhere.bloboperations.util.RateLimiter;
+import com.goeswhere.bloboperations.util.Streams;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Rewrites existing blobs with a different StorageFilter, e.g. after the storage's filter, or its compression
+// level, has been changed.  Each blob is written to a new large object, then the blob row is pointed at it,
+// in one short transaction per blob, so readers carry on throughout.
+// The old large objects are recorded in a table (see blob_retired in create.pgsql) in the same transaction,
+// and only deleted from there, so a run which dies part way leaves them for the next, rather than leaking them.
+public class Recompressor {
+    private static final Log logger = LogFactory.getLog(Recompressor.class);
+
+    public static final String DEFAULT_RETIRED_TABLE_NAME = "blob_retired";
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    // a reader may have looked up the old large object, but not yet opened it, when we swap it out,
+    // so old objects are only deleted after this long
+    public static final Duration DEFAULT_GRACE = Duration.ofSeconds(30);
+
+    private final BlobStore<?> store;
+    private final HashedBlobStorage storage;
+    private final String retiredTableName;
+    private final HashedBlobStorage.StorageFilter target;
+    private final RateLimiter budget;
+    private final int pageSize;
+    private final Duration grace;
+
+    public Recompressor(BlobStore<?> store, HashedBlobStorage.StorageFilter target, long bytesPerSecond) {
+        this(store, DEFAULT_RETIRED_TABLE_NAME, target, bytesPerSecond, DEFAULT_PAGE_SIZE, DEFAULT_GRACE);
+    }
+
+    // The target must already be registered with the storage, as with every reader's, or nothing could read
+    // back the blobs we write; we don't change the storage's codecs behind its owner's back.
+    // bytesPerSecond: of stored data read; zero or less for no limit
+    public Recompressor(BlobStore<?> store, String retiredTableName, HashedBlobStorage.StorageFilter target,
+                        long bytesPerSecond, int pageSize, Duration grace) {
+        this.store = store;
+        this.storage = store.storage;
+        this.retiredTableName = retiredTableName;
+        this.target = target;
+        this.budget = new RateLimiter(bytesPerSecond);
+        this.pageSize = pageSize;
+        this.grace = grace;
+
+        // throws if it isn't
+        storage.filterFor(target.codec());
+    }
+
+    // Which blobs to rewrite.  By default, all those which aren't already in the target's codec.
+    public static class Selection {
+        final String codec;
+        final long minStoredLength;
+        final double minRatio;
+        final Duration unwrittenFor;
+        final String prefix;
+        final boolean smallerOnly;
+
+        private Selection(String codec, long minStoredLength, double minRatio, Duration unwrittenFor, String prefix,
+                          boolean smallerOnly) {
+            this.codec = codec;
+            this.minStoredLength = minStoredLength;
+            this.minRatio = minRatio;
+            this.unwrittenFor = unwrittenFor;
+            this.prefix = prefix;
+            this.smallerOnly = smallerOnly;
+        }
+
+        public static Selection notInTargetCodec() {
+            return new Selection(null, 0, 0, null, null, false);
+        }
+
+        // only blobs in this codec, which may be the target's, e.g. to change the level
+        public Selection codec(String codec) {
+            return new Selection(codec, minStoredLength, minRatio, unwrittenFor, prefix, smallerOnly);
+        }
+
+        public Selection storedAtLeast(long bytes) {
+            return new Selection(codec, bytes, minRatio, unwrittenFor, prefix, smallerOnly);
+        }
+
+        // stored_length / original_length, i.e. 1.0 means no compression at all
+        public Selection ratioAtLeast(double ratio) {
+            return new Selection(codec, minStoredLength, ratio, unwrittenFor, prefix, smallerOnly);
+        }
+
+        // only blobs which no key has been stored to for this long
+        public Selection unwrittenFor(Duration age) {
+            return new Selection(codec, minStoredLength, minRatio, age, prefix, smallerOnly);
+        }
+
+        // only blobs which some key under this prefix points at
+        public Selection prefix(String prefix) {
+            return new Selection(codec, minStoredLength, minRatio, unwrittenFor, prefix, smallerOnly);
+        }
+
+        // even when changing codec, only swap in rewrites which are smaller, e.g. for a new dictionary
+        public Selection smallerOnly() {
+            return new Selection(codec, minStoredLength, minRatio, unwrittenFor, prefix, true);
+        }
+    }
+
+    public static class Result {
+        public final long checked;
+        public final long recompressed;
+        public final long storedBytesBefore;
+        public final long storedBytesAfter;
+
+        public Result(long checked, long recompressed, long storedBytesBefore, long storedBytesAfter) {
+            this.checked = checked;
+            this.recompressed = recompressed;
+            this.storedBytesBefore = storedBytesBefore;
+            this.storedBytesAfter = storedBytesAfter;
+        }
+
+        public long reclaimed() {
+            return storedBytesBefore - storedBytesAfter;
+        }
+    }
+
+    public Result recompress(Selection selection) {
+        long checked = 0;
+        long recompressed = 0;
+        long before = 0;
+        long after = 0;
+        long lastSwapNanos = 0;
+
+        UUID last = null;
+        List<HashedBlob> page;
+        do {
+            page = page(selection, last);
+            for (HashedBlob blob : page) {
+                ++checked;
+                final HashedBlob rewritten = rewrite(blob, selection.smallerOnly);
+                if (null != rewritten) {
+                    ++recompressed;
+                    before += blob.storedLength;
+                    after += rewritten.storedLength;
+                    lastSwapNanos = System.nanoTime();
+                }
+            }
+
+            unlinkRetired();
+
+            if (!page.isEmpty()) {
+                last = page.get(page.size() - 1).uuid;
+            }
+        } while (page.size() == pageSize);
+
+        if (recompressed > 0) {
+            waitOutGrace(lastSwapNanos);
+            unlinkRetired();
+        }
+
+        final Result result = new Result(checked, recompressed, before, after);
+        logger.info("recompressed " + recompressed + " of " + checked + " blobs, reclaiming " +
+                result.reclaimed() + " bytes");
+        return result;
+    }
+
+    private List<HashedBlob> page(Selection selection, UUID last) {
+        final StringBuilder sql = new StringBuilder("SELECT hash, stored_length, original_length, loid, codec" +
+                " FROM " + storage.blobTableName + " b WHERE codec ");
+        final List<Object> args = new ArrayList<>();
+
+        if (null != selection.codec) {
+            sql.append("= ?");
+            args.add(selection.codec);
+        } else {
+            sql.append("<> ?");
+            args.add(target.codec());
+        }
+
+        if (null != last) {
+            sql.append(" AND hash > ?");
+            args.add(last);
+        }
+
+        if (selection.minStoredLength > 0) {
+            sql.append(" AND stored_length >= ?");
+            args.add(selection.minStoredLength);
+        }
+
+        if (selection.minRatio > 0) {
+            sql.append(" AND stored_length >= ? * original_length");
+            args.add(selection.minRatio);
+        }
+
+        if (null != selection.unwrittenFor) {
+            sql.append(" AND NOT EXISTS (SELECT NULL FROM ").append(store.metadataTableName)
+                    .append(" m WHERE m.hash=b.hash AND m.created > now() - ? * INTERVAL '1 millisecond')");
+            args.add(selection.unwrittenFor.toMillis());
+        }
+
+        if (null != selection.prefix) {
+            sql.append(" AND EXISTS (SELECT NULL FROM ").append(store.metadataTableName)
+                    .append(" m WHERE m.hash=b.hash AND m.key LIKE ?)");
+            args.add(selection.prefix + "%");
+        }
+
+        sql.append(" ORDER BY hash LIMIT ").append(pageSize);
+
+        return storage.jdbc.query(sql.toString(), args.toArray(), (rs, underscore) -> new HashedBlob(
+                (UUID) rs.getObject("hash"),
+                rs.getLong("stored_length"),
+                rs.getLong("original_length"),
+                rs.getLong("loid"),
+                rs.getString("codec")));
+    }
+
+    // returns the new blob, or null if it was left alone
+    private HashedBlob rewrite(HashedBlob blob, boolean smallerOnly) {
+        return storage.transaction.execute(status -> {
+            final HashedBlob rewritten = storage.jdbc.execute((Connection conn) -> {
+                try (final NewLargeObject largeObject = new NewLargeObject(HashedBlobStorage.api(conn))) {
+                    return largeObject.write(dbOs -> storage.readStored(blob.oid,
+                            stored -> copy(blob, stored, dbOs, largeObject.getOid())));
+                }
+            });
+
+            // anything we've written is thrown away with the transaction
+            if (!blob.uuid.equals(rewritten.uuid)) {
+                logger.warn("not recompressing " + blob.uuid + ", as it now hashes to " + rewritten.uuid +
+                        "; consider running the Scrubber");
+                status.setRollbackOnly();
+                return null;
+            }
+
+            final boolean sameCodec = storage.codec(blob).equals(target.codec());
+            if ((sameCodec || smallerOnly) && rewritten.storedLength >= blob.storedLength) {
+                status.setRollbackOnly();
+                return null;
+            }
+
+            // if it's been collected, or rewritten by someone else, in the meantime, leave it be
+            if (1 != storage.jdbc.update("UPDATE " + storage.blobTableName +
+                            " SET loid=?, stored_length=?, codec=? WHERE hash=? AND loid=?",
+                    rewritten.oid, rewritten.storedLength, target.codec(), blob.uuid, blob.oid)) {
+                status.setRollbackOnly();
+                return null;
+            }
+
+            // clock_timestamp(), not now(): readers could find the old object until we commit, not since we began
+            storage.jdbc.update("INSERT INTO " + retiredTableName + " (loid, retired) VALUES (?, clock_timestamp())",
+                    blob.oid);
+
+            return rewritten;
+        });
+    }
+
+    private HashedBlob copy(HashedBlob blob, InputStream stored, OutputStream dbOs, long newOid) throws IOException {
+        final MessageDigest digest = HashedBlobStorage.digest();
+        try (final CountingOutputStream countingToDb = new CountingOutputStream(new BlockCloseOutputStream(dbOs))) {
+            final long originalLength;
+            try (final CountingOutputStream countingFromOld = new CountingOutputStream(target.output(countingToDb));
+                 final InputStream decoded = new DigestInputStream(
+                         storage.filterFor(blob.codec).input(new RateLimitedInputStream(stored, budget)), digest)) {
+                Streams.copy(decoded, countingFromOld);
+                originalLength = countingFromOld.getCount();
+            }
+
+            // only now has the compressor written everything out
+            return new HashedBlob(
+                    HashedBlobStorage.uuid(digest.digest()),
+                    countingToDb.getCount(),
+                    originalLength,
+                    newOid,
+                    target.codec());
+        }
+    }
+
+    private void waitOutGrace(long swappedNanos) {
+        final long remaining = grace.toNanos() - (System.nanoTime() - swappedNanos);
+        if (remaining <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted before old large objects were deleted; " +
+                    "the next run will delete them", e);
+        }
+    }
+
+    // Deletes the old large objects whose grace is over, including any left by earlier runs.  Each goes with
+    // its row, so if another Recompressor is doing the same, only one of us deletes it.
+    private void unlinkRetired() {
+        final List<Long> expired = storage.jdbc.queryForList("SELECT loid FROM " + retiredTableName +
+                        " WHERE retired <= now() - ? * INTERVAL '1 millisecond'",
+                new Object[]{grace.toMillis()}, Long.class);
+
+        for (long oid : expired) {
+            storage.transaction.execute(status -> {
+                if (1 == storage.jdbc.update("DELETE FROM " + retiredTableName + " WHERE loid=?", oid)) {
+                    storage.unlink(oid);
+                }
+                return null;
+            });
+        }
+    }
+}
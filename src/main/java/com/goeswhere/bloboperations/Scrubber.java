@@ -0,0 +1,253 @@
+package com.goeswhere.bloboperations;
+
+import com.goeswhere.bloboperations.util.RateLimitedInputStream;
+import com.goeswhere.bloboperations.util.RateLimiter;
+import com.goeswhere.bloboperations.util.Streams;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Reads every blob back, checking that it still decodes, hashes to its hash, and has the recorded lengths.
+// Runs on several connections at once, but within a budget of bytes read per second, so it can be left
+// running alongside everything else.
+public class Scrubber {
+    private static final Log logger = LogFactory.getLog(Scrubber.class);
+
+    public static final String DEFAULT_QUARANTINE_TABLE_NAME = "blob_quarantine";
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final HashedBlobStorage storage;
+    private final String quarantineTableName;
+    private final int threads;
+    private final int pageSize;
+    private final RateLimiter budget;
+
+    public Scrubber(HashedBlobStorage storage, int threads, long bytesPerSecond) {
+        this(storage, DEFAULT_QUARANTINE_TABLE_NAME, threads, bytesPerSecond, DEFAULT_PAGE_SIZE);
+    }
+
+    // bytesPerSecond: of stored (i.e. compressed) data, across all the threads; zero or less for no limit
+    public Scrubber(HashedBlobStorage storage, String quarantineTableName, int threads, long bytesPerSecond,
+                    int pageSize) {
+        this.storage = storage;
+        this.quarantineTableName = quarantineTableName;
+        this.threads = threads;
+        this.pageSize = pageSize;
+        this.budget = new RateLimiter(bytesPerSecond);
+    }
+
+    public static class Problem {
+        // null for an orphaned large object
+        public final UUID hash;
+        public final long loid;
+        public final String reason;
+
+        public Problem(UUID hash, long loid, String reason) {
+            this.hash = hash;
+            this.loid = loid;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return (null == hash ? "orphan" : hash.toString()) + " (" + loid + "): " + reason;
+        }
+    }
+
+    public static class Result {
+        public final long checked;
+        public final long storedBytes;
+        public final long problems;
+
+        public Result(long checked, long storedBytes, long problems) {
+            this.checked = checked;
+            this.storedBytes = storedBytes;
+            this.problems = problems;
+        }
+    }
+
+    public Result scrub(Consumer<Problem> problems) {
+        return scrub(null, problems, hash -> {
+        });
+    }
+
+    // resumeAfter: a hash passed to checkpoint by an earlier run, or null to start from the beginning.
+    // checkpoint is called (from this thread) once every blob up to and including that hash has been checked.
+    // problems is called from the worker threads.
+    public Result scrub(UUID resumeAfter, Consumer<Problem> problems, Consumer<UUID> checkpoint) {
+        final AtomicLong checked = new AtomicLong();
+        final AtomicLong storedBytes = new AtomicLong();
+        final AtomicLong found = new AtomicLong();
+
+        final Consumer<Problem> counting = problem -> {
+            found.incrementAndGet();
+            logger.warn("scrub found a problem: " + problem);
+            problems.accept(problem);
+        };
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            UUID after = resumeAfter;
+            List<HashedBlob> page;
+            do {
+                page = page(after);
+
+                final List<Callable<Void>> checks = new ArrayList<>(page.size());
+                for (HashedBlob blob : page) {
+                    checks.add(() -> {
+                        storedBytes.addAndGet(check(blob, counting));
+                        checked.incrementAndGet();
+                        return null;
+                    });
+                }
+
+                for (Future<Void> check : pool.invokeAll(checks)) {
+                    check.get();
+                }
+
+                if (!page.isEmpty()) {
+                    after = page.get(page.size() - 1).uuid;
+                    checkpoint.accept(after);
+                }
+            } while (page.size() == pageSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted; resume from the last checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("scrub failed; resume from the last checkpoint", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return new Result(checked.get(), storedBytes.get(), found.get());
+    }
+
+    private List<HashedBlob> page(UUID after) {
+        return storage.jdbc.query("SELECT hash, stored_length, original_length, loid, codec FROM " + storage.blobTableName +
+                        (null == after ? "" : " WHERE hash > ?") + " ORDER BY hash LIMIT " + pageSize,
+                null == after ? new Object[0] : new Object[]{after},
+                (rs, underscore) -> new HashedBlob(
+                        (UUID) rs.getObject("hash"),
+                        rs.getLong("stored_length"),
+                        rs.getLong("original_length"),
+                        rs.getLong("loid"),
+                        rs.getString("codec")));
+    }
+
+    // returns how many stored bytes were read
+    private long check(HashedBlob blob, Consumer<Problem> problems) {
+        return storage.transaction.execute(status -> {
+            // FOR SHARE stops it being collected while we're reading it; if it's gone already, that's fine
+            if (storage.jdbc.queryForList("SELECT hash FROM " + storage.blobTableName + " WHERE hash=? AND loid=?" +
+                    " FOR SHARE", new Object[]{blob.uuid, blob.oid}, UUID.class).isEmpty()) {
+                return 0L;
+            }
+
+            final AtomicLong stored = new AtomicLong();
+            final String reason;
+            try {
+                reason = storage.readStored(blob.oid, raw -> {
+                    final RateLimitedInputStream metered = new RateLimitedInputStream(raw, budget);
+                    try {
+                        return verify(blob, metered);
+                    } finally {
+                        stored.set(metered.getCount());
+                    }
+                });
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof InterruptedIOException) {
+                    throw e;
+                }
+                // the error may have aborted the transaction, and there's nothing to commit anyway
+                status.setRollbackOnly();
+                problems.accept(new Problem(blob.uuid, blob.oid, "unreadable: " + e));
+                return stored.get();
+            }
+
+            if (null != reason) {
+                problems.accept(new Problem(blob.uuid, blob.oid, reason));
+            }
+            return stored.get();
+        });
+    }
+
+    // returns what's wrong, or null if nothing is
+    private String verify(HashedBlob blob, RateLimitedInputStream raw) throws IOException {
+        final MessageDigest digest = HashedBlobStorage.digest();
+        final byte[] buf = new byte[Streams.BUFFER_SIZE];
+        long original = 0;
+
+        try (final InputStream decoded = storage.filterFor(blob.codec).input(raw)) {
+            int read;
+            while (-1 != (read = decoded.read(buf))) {
+                digest.update(buf, 0, read);
+                original += read;
+            }
+
+            // anything after the end of the encoded data is junk, but it still counts towards the length
+            while (-1 != raw.read(buf)) {
+                // drain
+            }
+        }
+
+        final UUID actual = HashedBlobStorage.uuid(digest.digest());
+        if (!blob.uuid.equals(actual)) {
+            return "content hashes to " + actual;
+        }
+
+        if (blob.originalLength != original) {
+            return "original_length is " + blob.originalLength + ", but decodes to " + original + " bytes";
+        }
+
+        if (blob.storedLength != raw.getCount()) {
+            return "stored_length is " + blob.storedLength + ", but " + raw.getCount() + " bytes are stored";
+        }
+
+        return null;
+    }
+
+    // Large objects which no blob row, nor quarantine row, points at.  Anything else in the database which
+    // stores large objects must be listed in alsoReferencing (tables with a loid column, e.g. upload_part,
+    // or the Recompressor's blob_retired), or its objects will be reported too.
+    public List<Problem> orphans(String... alsoReferencing) {
+        final StringBuilder sql = new StringBuilder("SELECT oid FROM pg_largeobject_metadata lo WHERE NOT EXISTS (" +
+                "SELECT NULL FROM " + storage.blobTableName + " WHERE loid=lo.oid)" +
+                " AND NOT EXISTS (SELECT NULL FROM " + quarantineTableName + " WHERE loid=lo.oid)");
+        for (String table : alsoReferencing) {
+            sql.append(" AND NOT EXISTS (SELECT NULL FROM ").append(table).append(" WHERE loid=lo.oid)");
+        }
+
+        return storage.jdbc.query(sql.toString(),
+                (rs, underscore) -> new Problem(null, rs.getLong("oid"), "orphaned large object"));
+    }
+
+    // Records the problem, and stops the blob being used: reads of keys which point at it will fail, and the
+    // next store of the same content writes it afresh.  The large object itself is kept, for inspection.
+    public void quarantine(Problem problem) {
+        storage.transaction.execute(status -> {
+            storage.jdbc.update("INSERT INTO " + quarantineTableName + " (loid, hash, reason, quarantined)" +
+                    " VALUES (?, ?, ?, now())", problem.loid, problem.hash, problem.reason);
+
+            if (null != problem.hash) {
+                storage.jdbc.update("DELETE FROM " + storage.blobTableName + " WHERE hash=? AND loid=?",
+                        problem.hash, problem.loid);
+            }
+            return null;
+        });
+        storage.wrote();
+    }
+}
@@ -0,0 +1,121 @@
+package com.goeswhere.bloboperations.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+// Builds a preset dictionary for DEFLATE from sample documents, roughly as zstd's "cover" trainer does:
+// greedily picks the segments of the samples made of the substrings that turn up in the most samples.
+// The best segments go at the end, as DEFLATE codes nearby matches more cheaply.
+public class DictionaryTrainer {
+    // DEFLATE can't refer back further than this, so a bigger dictionary is wasted
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final int K = 8;
+    private static final int SEGMENT = 64;
+
+    private DictionaryTrainer() {
+    }
+
+    private static class Segment implements Comparable<Segment> {
+        final byte[] sample;
+        final int start;
+        final int end;
+        long score;
+
+        Segment(byte[] sample, int start, int end, long score) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            return Long.compare(o.score, score);
+        }
+    }
+
+    public static byte[] train(List<byte[]> samples, int size) {
+        final int limit = Math.min(size, MAX_SIZE);
+
+        // how many samples each K-gram appears in; zero once a chosen segment covers it
+        final Map<Long, Integer> frequency = new HashMap<>();
+        for (byte[] sample : samples) {
+            final Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + K <= sample.length; ++i) {
+                seen.add(gram(sample, i));
+            }
+            for (Long gram : seen) {
+                frequency.merge(gram, 1, Integer::sum);
+            }
+        }
+
+        final PriorityQueue<Segment> candidates = new PriorityQueue<>();
+        for (byte[] sample : samples) {
+            for (int start = 0; start + K <= sample.length; start += SEGMENT / 2) {
+                final int end = Math.min(start + SEGMENT, sample.length);
+                final long score = score(frequency, sample, start, end);
+                if (score > 0) {
+                    candidates.add(new Segment(sample, start, end, score));
+                }
+            }
+        }
+
+        // scores only ever go down, so a candidate which still scores what it was queued with is the best
+        final List<Segment> chosen = new ArrayList<>();
+        int total = 0;
+        while (total < limit && !candidates.isEmpty()) {
+            final Segment best = candidates.poll();
+            final long now = score(frequency, best.sample, best.start, best.end);
+            if (now < best.score) {
+                best.score = now;
+                if (now > 0) {
+                    candidates.add(best);
+                }
+                continue;
+            }
+
+            chosen.add(best);
+            total += best.end - best.start;
+            for (int i = best.start; i + K <= best.end; ++i) {
+                frequency.put(gram(best.sample, i), 0);
+            }
+        }
+
+        final byte[] dictionary = new byte[Math.min(total, limit)];
+        int position = dictionary.length;
+        for (Segment segment : chosen) {
+            final int length = Math.min(segment.end - segment.start, position);
+            position -= length;
+            System.arraycopy(segment.sample, segment.end - length, dictionary, position, length);
+        }
+        return dictionary;
+    }
+
+    // only K-grams seen in more than one sample are worth having
+    private static long score(Map<Long, Integer> frequency, byte[] sample, int start, int end) {
+        final Set<Long> counted = new HashSet<>();
+        long score = 0;
+        for (int i = start; i + K <= end; ++i) {
+            final long gram = gram(sample, i);
+            final int seen = frequency.getOrDefault(gram, 0);
+            if (seen > 1 && counted.add(gram)) {
+                score += seen;
+            }
+        }
+        return score;
+    }
+
+    private static long gram(byte[] data, int offset) {
+        long gram = 0;
+        for (int i = 0; i < K; ++i) {
+            gram = (gram << 8) | (data[offset + i] & 0xff);
+        }
+        return gram;
+    }
+}
@@ -13,9 +13,13 @@ public class NewLargeObject implements AutoCloseable {
     private final LargeObject objectInDb;
 
     public NewLargeObject(LargeObjectManager pgLOManager) throws SQLException {
-        newOid = pgLOManager.createLO(LargeObjectManager.WRITE);
         // oid creation will be rolled-back at the end of the transaction if anything goes wrong
+        this(pgLOManager, pgLOManager.createLO(LargeObjectManager.WRITE));
+    }
 
+    // for an object which has been created (in this transaction) by other means
+    public NewLargeObject(LargeObjectManager pgLOManager, long newOid) throws SQLException {
+        this.newOid = newOid;
         objectInDb = pgLOManager.open(newOid, LargeObjectManager.WRITE);
     }
 
@@ -0,0 +1,56 @@
+package com.goeswhere.bloboperations.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+// Counts the bytes read through it, and charges them to the RateLimiter
+public class RateLimitedInputStream extends FilterInputStream {
+    private final RateLimiter limiter;
+    private long count;
+
+    public RateLimitedInputStream(InputStream in, RateLimiter limiter) {
+        super(in);
+        this.limiter = limiter;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int read = super.read();
+        if (-1 != read) {
+            spend(1);
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int read = super.read(b, off, len);
+        if (read > 0) {
+            spend(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = super.skip(n);
+        spend(skipped);
+        return skipped;
+    }
+
+    private void spend(long bytes) throws InterruptedIOException {
+        count += bytes;
+        try {
+            limiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rate limit");
+        }
+    }
+}
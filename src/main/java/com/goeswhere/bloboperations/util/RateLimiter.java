@@ -0,0 +1,36 @@
+package com.goeswhere.bloboperations.util;
+
+import java.util.concurrent.TimeUnit;
+
+// Keeps the average rate of whatever's passed to acquire() under a budget, per second, by making
+// callers sleep.  Shared between threads, who then share the budget.
+public class RateLimiter {
+    private final long perSecond;
+
+    // when the budget spent so far will have been paid off
+    private long nextFreeNanos = System.nanoTime();
+
+    // perSecond: zero or less for no limit
+    public RateLimiter(long perSecond) {
+        this.perSecond = perSecond;
+    }
+
+    public void acquire(long amount) throws InterruptedException {
+        if (perSecond <= 0 || amount <= 0) {
+            return;
+        }
+
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            // idle time doesn't build up credit, so there are no bursts after a pause
+            final long start = Math.max(nextFreeNanos, now);
+            nextFreeNanos = start + TimeUnit.SECONDS.toNanos(amount) / perSecond;
+            wait = start - now;
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.goeswhere.bloboperations.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+// Reads the source on another thread, up to window chunks ahead of the reader, so e.g. network round trips,
+// or decompression, overlap with whatever the reader is doing.  Errors from the source are thrown to the
+// reader when it gets to them.  Closing stops, and waits for, the background reading, then closes the source.
+public class ReadAheadInputStream extends InputStream {
+    private static final byte[] END = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<byte[]> chunks;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // guarded by this, so we never interrupt the thread once it has moved on to something else
+    private Thread producer;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    private byte[] current = new byte[0];
+    private int position;
+    private boolean finished;
+
+    // the executor must start the work promptly, e.g. not a fixed pool which might be full of our own readers
+    public ReadAheadInputStream(InputStream source, Executor executor, int chunkSize, int window) {
+        this.source = source;
+        this.chunks = new ArrayBlockingQueue<>(window);
+        executor.execute(() -> produce(chunkSize));
+    }
+
+    private void produce(int chunkSize) {
+        synchronized (this) {
+            producer = Thread.currentThread();
+        }
+
+        try {
+            try {
+                while (!closed) {
+                    final byte[] chunk = new byte[chunkSize];
+                    int filled = 0;
+                    int read = 0;
+                    while (filled < chunkSize && -1 != (read = source.read(chunk, filled, chunkSize - filled))) {
+                        filled += read;
+                    }
+
+                    if (filled > 0) {
+                        chunks.put(filled == chunkSize ? chunk : Arrays.copyOf(chunk, filled));
+                    }
+
+                    if (-1 == read) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("reading ahead failed", e);
+            }
+
+            if (!closed) {
+                chunks.put(END);
+            }
+        } catch (InterruptedException e) {
+            // only happens when we're closed, so nobody's waiting for the end
+        } finally {
+            synchronized (this) {
+                producer = null;
+                // in case close() interrupted us just as we finished; the thread isn't ours to leave interrupted
+                Thread.interrupted();
+            }
+            stopped.countDown();
+        }
+    }
+
+    // false at the end of the stream
+    private boolean fill() throws IOException {
+        if (finished) {
+            return false;
+        }
+
+        while (position == current.length) {
+            try {
+                current = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for data");
+            }
+            position = 0;
+
+            if (END == current) {
+                finished = true;
+                if (null != failure) {
+                    throw failure;
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        final int count = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // wake it up if it's waiting for space; if it's reading from the source, it'll notice when it's done
+        synchronized (this) {
+            if (null != producer) {
+                producer.interrupt();
+            }
+        }
+        chunks.clear();
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for reading ahead to stop");
+        } finally {
+            source.close();
+        }
+    }
+}
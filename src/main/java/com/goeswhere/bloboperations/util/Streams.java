@@ -0,0 +1,23 @@
+package com.goeswhere.bloboperations.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class Streams {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private Streams() {
+    }
+
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buf = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while (-1 != (read = in.read(buf))) {
+            out.write(buf, 0, read);
+            total += read;
+        }
+        return total;
+    }
+}
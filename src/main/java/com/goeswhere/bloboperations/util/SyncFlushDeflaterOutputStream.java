@@ -0,0 +1,35 @@
+package com.goeswhere.bloboperations.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Raw deflate, which ends with a sync flush instead of a final block.  The output is byte-aligned
+// and doesn't refer to anything before it, so any number of these can be concatenated, then ended
+// with FINAL_BLOCK, to make a single valid deflate stream (as pigz does).
+public class SyncFlushDeflaterOutputStream extends DeflaterOutputStream {
+    // an empty, fixed huffman, final block
+    public static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    private boolean closed;
+
+    public SyncFlushDeflaterOutputStream(OutputStream out) {
+        super(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true), Streams.BUFFER_SIZE, true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            flush();
+        } finally {
+            def.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.goeswhere.bloboperations.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes zip files whose entries are all DEFLATEd, sizes and CRCs trailing the data,
+// so that data which is already DEFLATEd (e.g. the inside of a gzip stream) can be copied
+// straight in, without inflating and deflating it again.
+
+// There's no zip64 support: entries, and the archive, must be under 4GB, with under 65535 entries.
+public class ZipWriter implements AutoCloseable {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int VERSION = 20;
+    private static final int FLAGS_DESCRIPTOR_UTF8 = (1 << 3) | (1 << 11);
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final long MAX_U32 = 0xFFFFFFFFL;
+    private static final int MAX_U16 = 0xFFFF;
+
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    private final CountingOutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private static class Entry {
+        final byte[] name;
+        final int time;
+        final int date;
+        final long offset;
+        int crc;
+        long compressedSize;
+        long size;
+
+        Entry(byte[] name, int time, int date, long offset) {
+            this.name = name;
+            this.time = time;
+            this.date = date;
+            this.offset = offset;
+        }
+    }
+
+    public ZipWriter(OutputStream out) {
+        this.out = new CountingOutputStream(out);
+    }
+
+    public void put(String name, ZonedDateTime modified, InputStream plain) throws IOException {
+        final Entry entry = start(name, modified);
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final CRC32 crc = new CRC32();
+        final byte[] in = new byte[Streams.BUFFER_SIZE];
+        final byte[] buf = new byte[Streams.BUFFER_SIZE];
+        final long before = out.getCount();
+        long size = 0;
+
+        try {
+            int read;
+            while (-1 != (read = plain.read(in))) {
+                crc.update(in, 0, read);
+                size += read;
+                deflater.setInput(in, 0, read);
+                while (!deflater.needsInput()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        finish(entry, (int) crc.getValue(), out.getCount() - before, size);
+    }
+
+    public void putGzip(String name, ZonedDateTime modified, InputStream gzip, long gzipLength, long size)
+            throws IOException {
+        final Entry entry = start(name, modified);
+        final DataInputStream in = new DataInputStream(gzip);
+
+        final long headerLength = skipGzipHeader(in);
+        final long deflatedLength = gzipLength - headerLength - 8;
+        if (deflatedLength < 0) {
+            throw new IllegalStateException("gzip stream is too short to be valid: " + gzipLength);
+        }
+
+        final byte[] buf = new byte[Streams.BUFFER_SIZE];
+        long remaining = deflatedLength;
+        while (remaining > 0) {
+            final int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (-1 == read) {
+                throw new EOFException("gzip stream ended early");
+            }
+            out.write(buf, 0, read);
+            remaining -= read;
+        }
+
+        // the trailer is the crc of the uncompressed data, then its length, modulo 2^32
+        final int crc = Integer.reverseBytes(in.readInt());
+        in.readInt();
+
+        finish(entry, crc, deflatedLength, size);
+    }
+
+    private static long skipGzipHeader(DataInputStream in) throws IOException {
+        if (0x1f != in.readUnsignedByte() || 0x8b != in.readUnsignedByte() || 8 != in.readUnsignedByte()) {
+            throw new IllegalStateException("not a deflated gzip stream");
+        }
+
+        final int flags = in.readUnsignedByte();
+
+        // mtime, extra flags, os
+        in.readFully(new byte[6]);
+        long length = 10;
+
+        if (0 != (flags & GZIP_FEXTRA)) {
+            final int extraLength = Short.reverseBytes(in.readShort()) & MAX_U16;
+            in.readFully(new byte[extraLength]);
+            length += 2 + extraLength;
+        }
+
+        for (int flag : new int[]{GZIP_FNAME, GZIP_FCOMMENT}) {
+            if (0 != (flags & flag)) {
+                do {
+                    ++length;
+                } while (0 != in.readUnsignedByte());
+            }
+        }
+
+        if (0 != (flags & GZIP_FHCRC)) {
+            in.readShort();
+            length += 2;
+        }
+
+        return length;
+    }
+
+    private Entry start(String name, ZonedDateTime modified) throws IOException {
+        if (entries.size() >= MAX_U16) {
+            throw new IllegalStateException("too many entries for a zip without zip64");
+        }
+
+        final ZonedDateTime dos = modified.getYear() < 1980 ? modified.withYear(1980).withDayOfYear(1) : modified;
+        final Entry entry = new Entry(
+                name.getBytes(StandardCharsets.UTF_8),
+                (dos.getHour() << 11) | (dos.getMinute() << 5) | (dos.getSecond() / 2),
+                ((dos.getYear() - 1980) << 9) | (dos.getMonthValue() << 5) | dos.getDayOfMonth(),
+                checkU32(out.getCount()));
+
+        writeInt(LOCAL_HEADER);
+        writeShort(VERSION);
+        writeShort(FLAGS_DESCRIPTOR_UTF8);
+        writeShort(METHOD_DEFLATED);
+        writeShort(entry.time);
+        writeShort(entry.date);
+        // crc and sizes, which follow the data instead
+        writeInt(0);
+        writeInt(0);
+        writeInt(0);
+        writeShort(entry.name.length);
+        writeShort(0);
+        out.write(entry.name);
+
+        entries.add(entry);
+        return entry;
+    }
+
+    private void finish(Entry entry, int crc, long compressedSize, long size) throws IOException {
+        entry.crc = crc;
+        entry.compressedSize = checkU32(compressedSize);
+        entry.size = checkU32(size);
+
+        writeInt(DATA_DESCRIPTOR);
+        writeInt(crc);
+        writeInt((int) entry.compressedSize);
+        writeInt((int) entry.size);
+    }
+
+    // writes the central directory; the underlying stream is flushed, but left open
+    @Override
+    public void close() throws IOException {
+        final long centralDirectory = checkU32(out.getCount());
+
+        for (Entry entry : entries) {
+            writeInt(CENTRAL_HEADER);
+            writeShort(VERSION);
+            writeShort(VERSION);
+            writeShort(FLAGS_DESCRIPTOR_UTF8);
+            writeShort(METHOD_DEFLATED);
+            writeShort(entry.time);
+            writeShort(entry.date);
+            writeInt(entry.crc);
+            writeInt((int) entry.compressedSize);
+            writeInt((int) entry.size);
+            writeShort(entry.name.length);
+            // extra length, comment length, disk number, internal attributes
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            // external attributes
+            writeInt(0);
+            writeInt((int) entry.offset);
+            out.write(entry.name);
+        }
+
+        final long centralDirectoryLength = checkU32(out.getCount() - centralDirectory);
+
+        writeInt(END_OF_CENTRAL_DIRECTORY);
+        // this disk, disk with the central directory
+        writeShort(0);
+        writeShort(0);
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt((int) centralDirectoryLength);
+        writeInt((int) centralDirectory);
+        // comment length
+        writeShort(0);
+
+        out.flush();
+    }
+
+    private static long checkU32(long value) {
+        if (value >= MAX_U32) {
+            throw new IllegalStateException("too large for a zip without zip64: " + value);
+        }
+        return value;
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value);
+        writeShort(value >>> 16);
+    }
+}
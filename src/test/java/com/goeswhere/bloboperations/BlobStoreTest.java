@@ -1,6 +1,7 @@
 package com.goeswhere.bloboperations;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.goeswhere.bloboperations.helpers.CountingJdbcTemplate;
 import com.goeswhere.bloboperations.helpers.JsonMapper;
 import com.google.common.io.ByteStreams;
 import org.junit.Assert;
@@ -11,7 +12,10 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.*;
@@ -70,20 +74,13 @@ public class BlobStoreTest extends DatabaseConnectionHelper {
     @Test
     public void apparentSizes() {
         assertEquals(0, store.directoryApparentSize("a/"));
-        writeHelloWorld("a/foo");
+        writeHelloWorld(store, "a/foo");
         final long justOne = store.directoryApparentSize("a/");
         assertNotSame(0, justOne);
-        writeHelloWorld("a/bar");
+        writeHelloWorld(store, "a/bar");
         assertNotSame(justOne, store.directoryApparentSize("a/"));
     }
 
-    private void writeHelloWorld(String key) {
-        store.store(key, os -> {
-            os.write("hello world".getBytes(StandardCharsets.UTF_8));
-            return null;
-        });
-    }
-
     @Test(expected = IncorrectResultSizeDataAccessException.class)
     public void updateMissingMetadata() {
         store.updateUserMetadata("johnson", new Foo());
@@ -91,7 +88,7 @@ public class BlobStoreTest extends DatabaseConnectionHelper {
 
     @Test
     public void updateMetadata() {
-        writeHelloWorld("meaty");
+        writeHelloWorld(store, "meaty");
         assertNull(store.metadata("meaty").extra);
         store.updateUserMetadata("meaty", new Foo(12));
         assertEquals(12, store.metadata("meaty").extra.bar);
@@ -105,7 +102,7 @@ public class BlobStoreTest extends DatabaseConnectionHelper {
     @Test
     public void blobExists() {
         assertFalse(store.exists("existy"));
-        writeHelloWorld("existy");
+        writeHelloWorld(store, "existy");
         assertTrue(store.exists("existy"));
         store.delete("existy");
         assertFalse(store.exists("existy"));
@@ -113,18 +110,251 @@ public class BlobStoreTest extends DatabaseConnectionHelper {
 
     @Test
     public void deletePrefix() {
-        writeHelloWorld("pre/a");
-        writeHelloWorld("pre/b");
-        writeHelloWorld("preb");
+        writeHelloWorld(store, "pre/a");
+        writeHelloWorld(store, "pre/b");
+        writeHelloWorld(store, "preb");
         store.deletePrefix("pre/");
         assertFalse(store.exists("pre/a"));
         assertFalse(store.exists("pre/b"));
         assertTrue(store.exists("preb"));
     }
 
+    @Test
+    public void storeOptimistically() {
+        store.storeOptimistically("optimistic", os -> {
+            os.write("hello world".getBytes(StandardCharsets.UTF_8));
+            return new Foo(6);
+        });
+
+        assertEquals(6, store.metadata("optimistic").extra.bar);
+        assertEquals("hello world", readString(store, "optimistic"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void storeOptimisticallyOntoExisting() {
+        writeHelloWorld(store, "optimistic-existing");
+        store.storeOptimistically("optimistic-existing", os -> null);
+    }
+
+    @Test
+    public void storeOptimisticallyWhileLocked() throws InterruptedException {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        jdbc.update("INSERT INTO blopstest.metadata (key, created) VALUES ('optimistic-locked', now())");
+
+        final Thread holder = new Thread(() -> transactions.execute(status -> {
+            jdbc.queryForList("SELECT key FROM blopstest.metadata WHERE key='optimistic-locked' FOR UPDATE");
+            locked.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        }));
+        holder.start();
+        locked.await();
+
+        try {
+            store.storeOptimistically("optimistic-locked", os -> null, 2);
+            fail("expected exception");
+        } catch (IllegalStateException lockedOut) {
+            // the other writer still holds the key
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+
+        store.storeOptimistically("optimistic-locked", os -> null);
+        assertTrue(store.exists("optimistic-locked"));
+    }
+
+    @Test
+    public void copy() {
+        store.store("copy/src", os -> {
+            os.write("hello world".getBytes(StandardCharsets.UTF_8));
+            return new Foo(3);
+        });
+        store.copy("copy/src", "copy/dst");
+
+        assertTrue(store.exists("copy/src"));
+        assertEquals(store.metadata("copy/src").hash, store.metadata("copy/dst").hash);
+        assertEquals(3, store.metadata("copy/dst").extra.bar);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void copyOntoExisting() {
+        writeHelloWorld(store, "copy-over/a");
+        writeHelloWorld(store, "copy-over/b");
+        store.copy("copy-over/a", "copy-over/b");
+    }
+
+    @Test
+    public void copyOntoIncompleteStore() {
+        writeHelloWorld(store, "copy-incomplete/a");
+        // as left by a store which failed
+        jdbc.update("INSERT INTO blopstest.metadata (key, created) VALUES ('copy-incomplete/b', now())");
+
+        store.copy("copy-incomplete/a", "copy-incomplete/b");
+        assertEquals("hello world", readString(store, "copy-incomplete/b"));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void copyMissing() {
+        store.copy("copy-missing", "copy-missing-dst");
+    }
+
+    @Test
+    public void rename() {
+        writeHelloWorld(store, "rename/src");
+        final UUID hash = store.metadata("rename/src").hash;
+        store.rename("rename/src", "rename/dst");
+
+        assertFalse(store.exists("rename/src"));
+        assertEquals(hash, store.metadata("rename/dst").hash);
+    }
+
+    @Test
+    public void renameOntoExisting() {
+        writeHelloWorld(store, "rename-over/a");
+        store.store("rename-over/b", os -> null);
+
+        try {
+            store.rename("rename-over/a", "rename-over/b");
+            fail("expected exception");
+        } catch (IllegalStateException alreadyExists) {
+
+        }
+
+        assertEquals("hello world", readString(store, "rename-over/a"));
+        assertEquals("", readString(store, "rename-over/b"));
+    }
+
+    @Test
+    public void renameOntoIncompleteStore() {
+        writeHelloWorld(store, "rename-incomplete/a");
+        jdbc.update("INSERT INTO blopstest.metadata (key, created) VALUES ('rename-incomplete/b', now())");
+
+        store.rename("rename-incomplete/a", "rename-incomplete/b");
+        assertFalse(store.exists("rename-incomplete/a"));
+        assertEquals("hello world", readString(store, "rename-incomplete/b"));
+    }
+
+    @Test
+    public void copyPrefix() {
+        writeHelloWorld(store, "snap/a");
+        writeHelloWorld(store, "snap/b/c");
+        writeHelloWorld(store, "snapb");
+
+        assertEquals(2, store.copyPrefix("snap/", "snapshot/1/"));
+
+        assertTrue(store.exists("snapshot/1/a"));
+        assertTrue(store.exists("snapshot/1/b/c"));
+        assertFalse(store.exists("snapshot/1/b"));
+        assertTrue(store.exists("snap/a"));
+    }
+
+    @Test
+    public void copyPrefixIsAllOrNothing() {
+        writeHelloWorld(store, "snap-clash/a");
+        writeHelloWorld(store, "snap-clash/b");
+        store.store("snapshot-clash/b", os -> null);
+
+        try {
+            store.copyPrefix("snap-clash/", "snapshot-clash/");
+            fail("expected exception");
+        } catch (IllegalStateException someExist) {
+
+        }
+
+        // a would have been fine, but b clashed, so neither was copied
+        assertFalse(store.exists("snapshot-clash/a"));
+        assertEquals("", readString(store, "snapshot-clash/b"));
+    }
+
+    @Test
+    public void readRaw() {
+        writeHelloWorld(store, "raw");
+        store.readRaw("raw", (is, meta, codec) -> {
+            assertEquals("gzip", codec);
+            final byte[] stored = ByteStreams.toByteArray(is);
+            assertEquals(meta.backingStore.storedLength, stored.length);
+            assertEquals(0x1f, stored[0] & 0xff);
+            assertEquals(0x8b, stored[1] & 0xff);
+            return null;
+        });
+    }
+
+    @Test
+    public void exportZip() throws IOException {
+        writeHelloWorld(store, "zip/a");
+        store.store("zip/b/c", os -> null);
+
+        final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        store.exportZip("zip/", archive);
+
+        final Map<String, String> contents = new HashMap<>();
+        try (final ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+            ZipEntry entry;
+            while (null != (entry = zis.getNextEntry())) {
+                contents.put(entry.getName(), new String(ByteStreams.toByteArray(zis), StandardCharsets.UTF_8));
+            }
+        }
+
+        final Map<String, String> expected = new HashMap<>();
+        expected.put("zip/a", "hello world");
+        expected.put("zip/b/c", "");
+        assertEquals(expected, contents);
+    }
+
+    @Test
+    public void standbyReads() {
+        for (boolean readYourWrites : new boolean[]{false, true}) {
+            final CountingJdbcTemplate primaryJdbc = new CountingJdbcTemplate(ds);
+            final CountingJdbcTemplate standbyJdbc = new CountingJdbcTemplate(ds);
+            final BlobStore<Foo> standby = new BlobStore<>(
+                    new HashedBlobStorage(primaryJdbc, transactions, "blopstest.blob",
+                            HashedBlobStorage.GZIP_STORAGE_FILTER).withStandby(standbyJdbc, transactions, readYourWrites),
+                    store.serialiseExtra,
+                    "blopstest.metadata");
+
+            // looked up once per store, on the primary; do it now, so it isn't counted below
+            standby.serverFunctions();
+            standby.jsonExtra();
+            primaryJdbc.reset();
+
+            final String key = "standby/" + readYourWrites;
+            standby.store(key, os -> {
+                os.write("hello world".getBytes(StandardCharsets.UTF_8));
+                return new Foo(4);
+            });
+
+            // writes, and noting where the primary's WAL got to, only ever go to the primary
+            assertTrue(primaryJdbc.reset() > 0);
+            assertEquals(0, standbyJdbc.reset());
+
+            assertTrue(standby.exists(key));
+            assertEquals(4, standby.metadata(key).extra.bar);
+            assertEquals("hello world".length(), standby.fullMetadata(key).backingStore.originalLength);
+            assertEquals(1, standby.listFullMetadataByPrefix(key).size());
+            assertEquals("hello world", readString(standby, key));
+
+            if (readYourWrites) {
+                // the test database isn't in recovery, so the standby never reports having replayed our write:
+                // each of the five reads asks it, then falls back to the primary
+                assertEquals(5, standbyJdbc.reset());
+                assertTrue(primaryJdbc.reset() > 0);
+            } else {
+                assertTrue(standbyJdbc.reset() > 5);
+                assertEquals(0, primaryJdbc.reset());
+            }
+        }
+    }
+
     @Test
     public void fullMetadata() {
-        writeHelloWorld("full-data");
+        writeHelloWorld(store, "full-data");
         final FullMetadata<Foo> full = store.fullMetadata("full-data");
         assertEquals("full-data", full.metadata.key);
         assertEquals("hello world".length(), full.backingStore.originalLength);
@@ -132,8 +362,8 @@ public class BlobStoreTest extends DatabaseConnectionHelper {
 
     @Test
     public void fullMetadataList() {
-        writeHelloWorld("full/a");
-        writeHelloWorld("full/b");
+        writeHelloWorld(store, "full/a");
+        writeHelloWorld(store, "full/b");
         store.store("full/c", os -> new Foo(5));
 
         final List<FullMetadata<Foo>> datas = store.listFullMetadataByPrefix("full/");
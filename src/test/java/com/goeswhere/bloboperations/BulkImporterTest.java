@@ -0,0 +1,65 @@
+package com.goeswhere.bloboperations;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkImporterTest extends DatabaseConnectionHelper {
+
+    final BlobStore<Void> store = newStore(HashedBlobStorage.GZIP_STORAGE_FILTER);
+
+    final BulkImporter<Void> importer = new BulkImporter<>(store, 3, 2);
+
+    @Test
+    public void directory() throws IOException {
+        final Path root = Files.createTempDirectory("bulk");
+        Files.createDirectories(root.resolve("sub/dir"));
+        write(root.resolve("a.txt"), "bulk import one");
+        write(root.resolve("sub/b.txt"), "bulk import two");
+        write(root.resolve("sub/dir/c.txt"), "bulk import one");
+
+        final BulkImporter.Result first = importer.importDirectory(root, "bulk/dir/");
+        assertEquals(3, first.uploaded + first.deduplicated);
+        assertEquals(0, first.skipped);
+
+        assertTrue(store.exists("bulk/dir/a.txt"));
+        assertTrue(store.exists("bulk/dir/sub/b.txt"));
+        assertEquals(store.metadata("bulk/dir/a.txt").hash, store.metadata("bulk/dir/sub/dir/c.txt").hash);
+
+        final BulkImporter.Result again = importer.importDirectory(root, "bulk/dir/");
+        assertEquals(0, again.uploaded + again.deduplicated);
+        assertEquals(3, again.skipped);
+    }
+
+    @Test
+    public void zip() throws IOException {
+        final Path zip = Files.createTempFile("bulk", ".zip");
+        try (final ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (String name : new String[]{"x.txt", "y/z.txt"}) {
+                zos.putNextEntry(new ZipEntry(name));
+                zos.write(("zipped " + name).getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+            }
+        }
+
+        final BulkImporter.Result result = importer.importZip(zip, "bulk/zip/");
+        assertEquals(2, result.uploaded + result.deduplicated);
+
+        assertEquals("zipped y/z.txt", readString(store, "bulk/zip/y/z.txt"));
+    }
+
+    private static void write(Path path, String content) throws IOException {
+        try (final OutputStream os = Files.newOutputStream(path)) {
+            os.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -1,22 +1,28 @@
 package com.goeswhere.bloboperations;
 
+import com.goeswhere.bloboperations.util.Stringer;
+import com.google.common.io.ByteStreams;
 import org.junit.BeforeClass;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
 
 public class DatabaseConnectionHelper {
+    static final String URL = "jdbc:postgresql:test";
+
     static DataSource ds;
     static JdbcTemplate jdbc;
     static TransactionTemplate transactions;
 
     @BeforeClass
     public static void connect() {
-        ds = new DriverManagerDataSource("jdbc:postgresql:test", "test", "test");
+        ds = new DriverManagerDataSource(URL, "test", "test");
         jdbc = new JdbcTemplate(ds);
         transactions = new TransactionTemplate(new DataSourceTransactionManager(ds));
         jdbc.execute("SELECT 1");
@@ -28,4 +34,29 @@ public class DatabaseConnectionHelper {
         }
     }
 
+    static BlobStore<Void> newStore(HashedBlobStorage.StorageFilter filter) {
+        return newStore(jdbc, filter);
+    }
+
+    static BlobStore<Void> newStore(JdbcOperations jdbc, HashedBlobStorage.StorageFilter filter) {
+        return new BlobStore<>(
+                new HashedBlobStorage(jdbc, transactions, "blopstest.blob", filter),
+                Stringer.alwaysNull(),
+                "blopstest.metadata");
+    }
+
+    static <EX> void write(BlobStore<EX> store, String key, byte[] content) {
+        store.store(key, os -> {
+            os.write(content);
+            return null;
+        });
+    }
+
+    static void writeHelloWorld(BlobStore<?> store, String key) {
+        write(store, key, "hello world".getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(BlobStore<?> store, String key) {
+        return store.read(key, (is, meta) -> new String(ByteStreams.toByteArray(is), StandardCharsets.UTF_8));
+    }
 }
@@ -0,0 +1,80 @@
+package com.goeswhere.bloboperations;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DictionariesTest extends DatabaseConnectionHelper {
+
+    final Dictionaries dictionaries = new Dictionaries(jdbc, "blopstest.blob_dictionary", 9);
+
+    final BlobStore<Void> gzipStore = newStore(HashedBlobStorage.GZIP_STORAGE_FILTER);
+
+    @Before
+    public void registerDictionaries() {
+        gzipStore.storage.registerCodecs(dictionaries::resolve);
+    }
+
+    private static byte[] order(int id) {
+        return ("{\"id\": " + id + ", \"customer\": {\"name\": \"Customer " + id * 7 + "\", \"address\": {" +
+                "\"street\": \"" + id % 97 + " High Street\", \"city\": \"London\"}}, \"items\": [{\"sku\": \"SKU-" +
+                id * 13 + "\", \"quantity\": " + id % 5 + "}], \"status\": \"dispatched\", \"notes\": null}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void trainWriteAndRead() {
+        for (int i = 0; i < 50; ++i) {
+            write(gzipStore, "dict/orders/" + i, order(i));
+        }
+
+        final int id = dictionaries.train(gzipStore, "dict/orders/");
+        assertEquals(id, dictionaries.latest("dict/orders/"));
+
+        final BlobStore<Void> dictStore = newStore(dictionaries.filter(id));
+
+        final byte[] data = order(1000);
+        write(dictStore, "dict/orders/new", data);
+
+        final HashedBlob blob = dictStore.fullMetadata("dict/orders/new").backingStore;
+        assertEquals(Dictionaries.CODEC_PREFIX + id, blob.codec);
+        assertTrue(blob.storedLength + " vs. " + data.length, blob.storedLength * 3 < data.length);
+
+        // readable through a store with some other filter, which finds the dictionary itself
+        assertArrayEquals(data, gzipStore.read("dict/orders/new", (is, meta) -> ByteStreams.toByteArray(is)));
+    }
+
+    @Test
+    public void recompressWithNewDictionary() {
+        for (int i = 0; i < 50; ++i) {
+            write(gzipStore, "dict/recompress/" + i, order(i + 5000));
+        }
+
+        final long before = gzipStore.fullMetadata("dict/recompress/7").backingStore.storedLength;
+
+        final int id = dictionaries.train(gzipStore, "dict/recompress/");
+        final Recompressor.Result result = new Recompressor(gzipStore, "blopstest.blob_retired",
+                dictionaries.filter(id), 0, 10, Duration.ZERO)
+                .recompress(Recompressor.Selection.notInTargetCodec().prefix("dict/recompress/").smallerOnly());
+
+        assertEquals(50, result.recompressed);
+        final HashedBlob after = gzipStore.fullMetadata("dict/recompress/7").backingStore;
+        assertEquals(Dictionaries.CODEC_PREFIX + id, after.codec);
+        assertTrue(after.storedLength < before);
+        assertArrayEquals(order(5007),
+                gzipStore.read("dict/recompress/7", (is, meta) -> ByteStreams.toByteArray(is)));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void noDictionary() {
+        dictionaries.latest("dict/never-trained/");
+    }
+}
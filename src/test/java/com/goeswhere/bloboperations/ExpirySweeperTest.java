@@ -0,0 +1,122 @@
+package com.goeswhere.bloboperations;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExpirySweeperTest extends DatabaseConnectionHelper {
+
+    final BlobStore<Void> store = newStore(HashedBlobStorage.GZIP_STORAGE_FILTER);
+
+    private static final ZonedDateTime PAST = ZonedDateTime.now(ZoneOffset.UTC).minusDays(1);
+    private static final ZonedDateTime FUTURE = ZonedDateTime.now(ZoneOffset.UTC).plusDays(1);
+
+    @Test
+    public void notYetExpired() {
+        write("ttl/future", FUTURE, "hello world");
+        assertTrue(store.exists("ttl/future"));
+        assertEquals(FUTURE.toInstant(), store.metadata("ttl/future").expiresAt.toInstant());
+        assertEquals("hello world", readString(store, "ttl/future"));
+    }
+
+    @Test
+    public void expiredIsMissing() {
+        write("ttl/past", PAST, "hello world");
+
+        assertFalse(store.exists("ttl/past"));
+        assertEquals(0, store.listFullMetadataByPrefix("ttl/past").size());
+        assertEquals(0, store.directoryApparentSize("ttl/past"));
+
+        try {
+            store.delete("ttl/past");
+            fail("expected exception");
+        } catch (NoSuchElementException missing) {
+
+        }
+    }
+
+    @Test
+    public void replaceExpired() {
+        write("ttl/replaced", PAST, "old");
+        write("ttl/replaced", null, "new");
+
+        assertEquals("new", readString(store, "ttl/replaced"));
+        assertNull(store.metadata("ttl/replaced").expiresAt);
+    }
+
+    @Test
+    public void sweep() {
+        for (int i = 0; i < 5; ++i) {
+            write("ttl/swept/" + i, PAST, "swept " + i);
+        }
+        write("ttl/swept/kept", FUTURE, "kept");
+
+        assertTrue(new ExpirySweeper(store, 2, true).sweep() >= 5);
+
+        assertEquals(0, jdbc.queryForObject("SELECT COUNT(*) FROM blopstest.metadata WHERE key LIKE 'ttl/swept/%'" +
+                " AND expires_at <= now()", Integer.class).intValue());
+        assertTrue(store.exists("ttl/swept/kept"));
+    }
+
+    @Test
+    public void copiesDoNotExpire() {
+        write("ttl/copy/src", FUTURE, "hello world");
+        store.copy("ttl/copy/src", "ttl/copy/dst");
+        store.copyPrefix("ttl/copy/", "ttl/copied/");
+
+        assertNull(store.metadata("ttl/copy/dst").expiresAt);
+        assertNull(store.metadata("ttl/copied/src").expiresAt);
+        assertNull(store.metadata("ttl/copied/dst").expiresAt);
+        assertEquals(FUTURE.toInstant(), store.metadata("ttl/copy/src").expiresAt.toInstant());
+    }
+
+    @Test
+    public void storeWhileSweeping() throws Exception {
+        write("ttl/racing", PAST, "old");
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> stored = transactions.execute(status -> {
+                // as the sweeper does, before deleting
+                jdbc.queryForList("SELECT key FROM blopstest.metadata WHERE key='ttl/racing' FOR UPDATE");
+
+                // it finds the expired row there, so waits to lock it
+                final Future<?> storing = executor.submit(() -> write("ttl/racing", null, "new"));
+                while (!jdbc.queryForObject("SELECT EXISTS (SELECT NULL FROM pg_locks WHERE NOT granted)",
+                        Boolean.class)) {
+                    assertFalse(storing.isDone());
+                    Thread.yield();
+                }
+
+                assertTrue(store.deleteExpired(1000) >= 1);
+                return storing;
+            });
+
+            stored.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals("new", readString(store, "ttl/racing"));
+        assertNull(store.metadata("ttl/racing").expiresAt);
+    }
+
+    private void write(String key, ZonedDateTime expiresAt, String content) {
+        store.store(key, expiresAt, os -> {
+            os.write(content.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+}
@@ -1,10 +1,14 @@
 package com.goeswhere.bloboperations;
 
+import com.google.common.io.ByteStreams;
 import org.junit.Test;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
@@ -73,4 +77,21 @@ public class HashedBlobStorageTest extends DatabaseConnectionHelper {
             return null;
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    public void readAhead() {
+        final byte[] data = new byte[1_000_000];
+        new Random(7).nextBytes(data);
+        final HashedBlob stored = storage.insert(os -> os.write(data));
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final HashedBlobStorage pipelined = storage.withReadAhead(executor, 64 * 1024, 4);
+            assertArrayEquals(data, pipelined.read(stored.uuid, ByteStreams::toByteArray));
+            assertEquals(stored.storedLength,
+                    (long) pipelined.readRaw(stored.uuid, is -> ByteStreams.toByteArray(is).length));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
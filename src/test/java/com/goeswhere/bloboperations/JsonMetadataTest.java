@@ -0,0 +1,91 @@
+package com.goeswhere.bloboperations;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.goeswhere.bloboperations.helpers.JsonMapper;
+import com.goeswhere.bloboperations.util.Stringer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonMetadataTest extends DatabaseConnectionHelper {
+
+    public static class Job {
+        public Job(String status, int attempts) {
+            this.status = status;
+            this.attempts = attempts;
+        }
+
+        public Job() {
+            // for Jackson
+        }
+
+        public String status;
+        public int attempts;
+    }
+
+    @BeforeClass
+    public static void truncate() {
+        jdbc.execute("TRUNCATE TABLE blopstest.json_metadata");
+    }
+
+    final BlobStore<Job> store = new BlobStore<>(
+            new HashedBlobStorage(jdbc, transactions, "blopstest.blob", HashedBlobStorage.GZIP_STORAGE_FILTER),
+            new JsonMapper().jsonStringer(new TypeReference<Job>() {
+            }),
+            "blopstest.json_metadata");
+
+    @Test
+    public void detected() {
+        assertTrue(store.jsonExtra());
+    }
+
+    @Test
+    public void roundTrip() {
+        write("json/round", new Job("done", 1));
+        assertEquals("done", store.metadata("json/round").extra.status);
+
+        store.updateUserMetadata("json/round", new Job("failed", 2));
+        assertEquals(2, store.metadata("json/round").extra.attempts);
+    }
+
+    @Test
+    public void find() {
+        write("jobs/a", new Job("failed", 1));
+        write("jobs/b", new Job("done", 1));
+        write("jobs/c", new Job("failed", 3));
+        write("other/d", new Job("failed", 1));
+
+        final List<String> failed = new ArrayList<>();
+        assertEquals(2, store.findByExtra("jobs/", "{\"status\": \"failed\"}",
+                meta -> failed.add(meta.metadata.key)));
+        assertEquals(new HashSet<>(Arrays.asList("jobs/a", "jobs/c")), new HashSet<>(failed));
+
+        final List<Job> retried = new ArrayList<>();
+        store.findByExtra("jobs/", "{\"status\": \"failed\", \"attempts\": 3}",
+                meta -> retried.add(meta.metadata.extra));
+        assertEquals(1, retried.size());
+        assertEquals(3, retried.get(0).attempts);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void findNeedsJsonb() {
+        new BlobStore<>(store.storage, Stringer.alwaysNull(), "blopstest.metadata")
+                .findByExtra("", "{}", meta -> {
+                });
+    }
+
+    private void write(String key, Job job) {
+        store.store(key, os -> {
+            os.write(key.getBytes(StandardCharsets.UTF_8));
+            return job;
+        });
+    }
+}
@@ -0,0 +1,99 @@
+package com.goeswhere.bloboperations;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MultipartUploadsTest extends DatabaseConnectionHelper {
+
+    @BeforeClass
+    public static void truncate() {
+        jdbc.execute("TRUNCATE TABLE blopstest.upload, blopstest.upload_part");
+    }
+
+    final BlobStore<Void> store = newStore(HashedBlobStorage.GZIP_STORAGE_FILTER);
+
+    final MultipartUploads<Void> uploads = new MultipartUploads<>(store,
+            "blopstest.upload", "blopstest.upload_part");
+
+    @Test
+    public void parallelParts() {
+        final UUID upload = uploads.begin("multi/parallel");
+
+        IntStream.rangeClosed(1, 4).parallel().forEach(part -> uploads.uploadPart(upload, part,
+                os -> os.write(("part " + part + ", ").getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals(Arrays.asList(1, 2, 3, 4), uploads.parts(upload));
+        uploads.complete(upload, 4, null);
+
+        assertEquals("part 1, part 2, part 3, part 4, ", readString(store, "multi/parallel"));
+        assertEquals(0, uploads.parts(upload).size());
+    }
+
+    @Test
+    public void deduplicatesAgainstStore() {
+        store.store("multi/single", os -> {
+            os.write("hello world".getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+
+        final UUID upload = uploads.begin("multi/dedup");
+        uploads.uploadPart(upload, 2, os -> os.write("world".getBytes(StandardCharsets.UTF_8)));
+        uploads.uploadPart(upload, 1, os -> os.write("hello ".getBytes(StandardCharsets.UTF_8)));
+        uploads.complete(upload, 2, null);
+
+        assertEquals(store.metadata("multi/single").hash, store.metadata("multi/dedup").hash);
+    }
+
+    @Test
+    public void partReplaced() {
+        final UUID upload = uploads.begin("multi/replaced");
+        uploads.uploadPart(upload, 1, os -> os.write("wrong".getBytes(StandardCharsets.UTF_8)));
+        uploads.uploadPart(upload, 1, os -> os.write("right".getBytes(StandardCharsets.UTF_8)));
+        uploads.complete(upload, 1, null);
+
+        assertEquals("right", readString(store, "multi/replaced"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void missingPart() {
+        final UUID upload = uploads.begin("multi/missing");
+        uploads.uploadPart(upload, 1, os -> os.write(1));
+        uploads.uploadPart(upload, 3, os -> os.write(3));
+        uploads.complete(upload, 3, null);
+    }
+
+    @Test
+    public void abandoned() {
+        final UUID upload = uploads.begin("multi/abandoned");
+        uploads.uploadPart(upload, 1, os -> os.write(1));
+
+        assertEquals(0, uploads.collectGarbage(Duration.ofHours(1)));
+        uploads.collectGarbage(Duration.ZERO);
+
+        assertEquals(0, uploads.parts(upload).size());
+        assertFalse(store.exists("multi/abandoned"));
+    }
+
+    @Test
+    public void longRunningIsNotAbandoned() {
+        final UUID upload = uploads.begin("multi/long-running");
+        jdbc.update("UPDATE blopstest.upload SET created=now() - INTERVAL '2 hours' WHERE id=?", upload);
+        uploads.uploadPart(upload, 1, os -> os.write(1));
+
+        // started long ago, but a part has arrived recently
+        uploads.collectGarbage(Duration.ofHours(1));
+        assertEquals(Collections.singletonList(1), uploads.parts(upload));
+
+        uploads.abort(upload);
+    }
+}
@@ -0,0 +1,88 @@
+package com.goeswhere.bloboperations;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecompressorTest extends DatabaseConnectionHelper {
+
+    private static final String RETIRED = "blopstest.blob_retired";
+
+    final BlobStore<Void> store = newStore(HashedBlobStorage.IDENTITY_STORAGE_FILTER);
+
+    @Test
+    public void identityToGzip() {
+        final byte[] data = new byte[100_000];
+        Arrays.fill(data, (byte) 'r');
+        System.arraycopy("recompress me".getBytes(StandardCharsets.UTF_8), 0, data, 0, 13);
+
+        write(store, "recompress/a", data);
+        final HashedBlob before = store.fullMetadata("recompress/a").backingStore;
+        assertEquals("identity", before.codec);
+
+        final Recompressor recompressor = new Recompressor(store, RETIRED,
+                HashedBlobStorage.GZIP_STORAGE_FILTER, 0, 10, Duration.ZERO);
+        final Recompressor.Result result = recompressor.recompress(
+                Recompressor.Selection.notInTargetCodec().prefix("recompress/"));
+
+        assertEquals(1, result.recompressed);
+        assertTrue(result.reclaimed() > 90_000);
+
+        final HashedBlob after = store.fullMetadata("recompress/a").backingStore;
+        assertEquals("gzip", after.codec);
+        assertEquals(data.length, after.originalLength);
+
+        // still readable through the identity store, which can always read gzip
+        assertArrayEquals(data, store.read("recompress/a", (is, meta) -> ByteStreams.toByteArray(is)));
+
+        // the old large object has gone, with its record
+        assertFalse(largeObjectExists(before.oid));
+        assertEquals(0, jdbc.queryForObject("SELECT COUNT(*) FROM " + RETIRED + " WHERE loid=?",
+                new Object[]{before.oid}, Integer.class).intValue());
+
+        // and there's nothing left to do
+        assertEquals(0, recompressor.recompress(
+                Recompressor.Selection.notInTargetCodec().prefix("recompress/")).checked);
+    }
+
+    @Test
+    public void selectsBySize() {
+        write(store, "recompress/small", "recompress me, too".getBytes(StandardCharsets.UTF_8));
+
+        final Recompressor recompressor = new Recompressor(store, RETIRED,
+                HashedBlobStorage.GZIP_STORAGE_FILTER, 0, 10, Duration.ZERO);
+        assertEquals(0, recompressor.recompress(Recompressor.Selection.notInTargetCodec()
+                .prefix("recompress/small").storedAtLeast(1_000)).checked);
+    }
+
+    @Test
+    public void deletesWhatAnEarlierRunLeft() {
+        // as if a run had died after swapping a blob, but before its grace was over
+        final long oid = jdbc.queryForObject("SELECT lo_create(0)", Long.class);
+        jdbc.update("INSERT INTO " + RETIRED + " (loid, retired) VALUES (?, now() - INTERVAL '1 day')", oid);
+
+        new Recompressor(store, RETIRED, HashedBlobStorage.GZIP_STORAGE_FILTER, 0, 10, Duration.ofMinutes(1))
+                .recompress(Recompressor.Selection.notInTargetCodec().prefix("recompress/nothing-here/"));
+
+        assertFalse(largeObjectExists(oid));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void targetMustBeRegistered() {
+        new Recompressor(store, RETIRED, Dictionaries.dictionaryFilter("test:unregistered", new byte[]{1}, 9),
+                0, 10, Duration.ZERO);
+    }
+
+    private static boolean largeObjectExists(long oid) {
+        return jdbc.queryForObject("SELECT EXISTS (SELECT NULL FROM pg_largeobject_metadata WHERE oid=?)",
+                new Object[]{oid}, Boolean.class);
+    }
+}
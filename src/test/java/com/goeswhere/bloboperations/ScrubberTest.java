@@ -0,0 +1,87 @@
+package com.goeswhere.bloboperations;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScrubberTest extends DatabaseConnectionHelper {
+
+    final HashedBlobStorage storage = new HashedBlobStorage(
+            jdbc,
+            transactions,
+            "blopstest.blob", HashedBlobStorage.GZIP_STORAGE_FILTER);
+
+    final Scrubber scrubber = new Scrubber(storage, "blopstest.blob_quarantine", 2, 0, 3);
+
+    @Test
+    public void findsAndQuarantinesDamage() {
+        final HashedBlob good = storage.insert(os -> os.write("scrub me".getBytes(StandardCharsets.UTF_8)));
+        final HashedBlob bad = storage.insert(os -> os.write("damage me".getBytes(StandardCharsets.UTF_8)));
+        jdbc.update("UPDATE blopstest.blob SET original_length=original_length+1 WHERE hash=?", bad.uuid);
+
+        final List<Scrubber.Problem> problems = Collections.synchronizedList(new ArrayList<>());
+        final List<UUID> checkpoints = new ArrayList<>();
+        final Scrubber.Result result = scrubber.scrub(null, problems::add, checkpoints::add);
+
+        assertTrue(result.checked >= 2);
+        assertFalse(checkpoints.isEmpty());
+
+        final List<Scrubber.Problem> ours = problems.stream()
+                .filter(problem -> problem.hash.equals(good.uuid) || problem.hash.equals(bad.uuid))
+                .collect(Collectors.toList());
+        assertEquals(1, ours.size());
+        assertEquals(bad.uuid, ours.get(0).hash);
+
+        scrubber.quarantine(ours.get(0));
+        assertFalse(storage.exists(bad.uuid));
+        assertTrue(storage.exists(good.uuid));
+
+        // the quarantined object is kept, but isn't an orphan
+        assertFalse(orphanOids().contains(bad.oid));
+    }
+
+    @Test
+    public void resumes() {
+        storage.insert(os -> os.write("resume me".getBytes(StandardCharsets.UTF_8)));
+
+        final List<UUID> checkpoints = new ArrayList<>();
+        final long all = scrubber.scrub(null, problem -> {
+        }, checkpoints::add).checked;
+
+        final UUID last = checkpoints.get(checkpoints.size() - 1);
+        assertEquals(0, scrubber.scrub(last, problem -> {
+        }, hash -> {
+        }).checked);
+
+        if (checkpoints.size() > 1) {
+            assertTrue(scrubber.scrub(checkpoints.get(0), problem -> {
+            }, hash -> {
+            }).checked < all);
+        }
+    }
+
+    @Test
+    public void orphans() {
+        final long orphan = jdbc.queryForObject("SELECT lo_create(0)", Long.class);
+        try {
+            assertTrue(orphanOids().contains(orphan));
+        } finally {
+            jdbc.queryForObject("SELECT lo_unlink(?)", Integer.class, orphan);
+        }
+    }
+
+    private List<Long> orphanOids() {
+        return scrubber.orphans("blopstest.upload_part").stream()
+                .map(problem -> problem.loid)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,149 @@
+package com.goeswhere.bloboperations;
+
+import com.goeswhere.bloboperations.helpers.CountingJdbcTemplate;
+import com.goeswhere.bloboperations.helpers.RoundTripCountingSocketFactory;
+import com.goeswhere.bloboperations.util.Stringer;
+import com.google.common.io.ByteStreams;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServerFunctionsTest extends DatabaseConnectionHelper {
+
+    private static CountingJdbcTemplate counting;
+    private static BlobStore<Void> store;
+
+    @BeforeClass
+    public static void install() throws IOException {
+        try (final InputStream sql = BlobStore.class.getResourceAsStream("functions.pgsql")) {
+            jdbc.execute(new String(ByteStreams.toByteArray(sql), StandardCharsets.UTF_8));
+        }
+
+        counting = new CountingJdbcTemplate(ds);
+        store = newStore(counting, HashedBlobStorage.GZIP_STORAGE_FILTER);
+
+        // looked up once per store; do it now, so it isn't counted below
+        store.jsonExtra();
+    }
+
+    // every store detects the functions, so leaving them installed would change what the other tests test
+    @AfterClass
+    public static void uninstall() {
+        jdbc.execute("DO $$ DECLARE f REGPROCEDURE; BEGIN" +
+                " FOR f IN SELECT oid FROM pg_proc WHERE proname LIKE 'blobops\\_%' LOOP" +
+                " EXECUTE 'DROP FUNCTION ' || f; END LOOP; END $$");
+    }
+
+    @Test
+    public void detected() {
+        store.useServerFunctions(null);
+        assertTrue(store.serverFunctions());
+    }
+
+    // JdbcTemplate calls, not round trips: e.g. a whole large object write is one call
+    @Test
+    public void statements() {
+        store.useServerFunctions(false);
+        counting.reset();
+        writeHelloWorld(store, "statements/statements");
+        // insert, lock, large object, lock table, insert blob, update
+        assertEquals(6, counting.reset());
+        assertEquals("hello world", readString(store, "statements/statements"));
+        // metadata, loid, large object
+        assertEquals(3, counting.reset());
+
+        store.useServerFunctions(true);
+        writeHelloWorld(store, "statements/functions");
+        // begin, large object, bind
+        assertEquals(3, counting.reset());
+        assertEquals("hello world", readString(store, "statements/functions"));
+        // read, large object
+        assertEquals(2, counting.reset());
+    }
+
+    @Test
+    public void roundTrips() {
+        // one connection, made once, so connecting isn't counted
+        final SingleConnectionDataSource single = new SingleConnectionDataSource(URL, "test", "test", true);
+        final Properties properties = new Properties();
+        properties.setProperty("socketFactory", RoundTripCountingSocketFactory.class.getName());
+        single.setConnectionProperties(properties);
+
+        try {
+            final BlobStore<Void> wire = new BlobStore<>(
+                    new HashedBlobStorage(new JdbcTemplate(single),
+                            new TransactionTemplate(new DataSourceTransactionManager(single)),
+                            "blopstest.blob", HashedBlobStorage.GZIP_STORAGE_FILTER),
+                    Stringer.alwaysNull(),
+                    "blopstest.metadata");
+            wire.jsonExtra();
+
+            wire.useServerFunctions(false);
+            RoundTripCountingSocketFactory.reset();
+            writeHelloWorld(wire, "round-trip/statements");
+            final int storeViaStatements = RoundTripCountingSocketFactory.reset();
+            assertEquals("hello world", readString(wire, "round-trip/statements"));
+            final int readViaStatements = RoundTripCountingSocketFactory.reset();
+
+            wire.useServerFunctions(true);
+            writeHelloWorld(wire, "round-trip/functions");
+            final int storeViaFunctions = RoundTripCountingSocketFactory.reset();
+            assertEquals("hello world", readString(wire, "round-trip/functions"));
+            final int readViaFunctions = RoundTripCountingSocketFactory.reset();
+
+            assertTrue("store: " + storeViaFunctions + " vs. " + storeViaStatements,
+                    storeViaFunctions < storeViaStatements);
+            assertTrue("read: " + readViaFunctions + " vs. " + readViaStatements,
+                    readViaFunctions < readViaStatements);
+        } finally {
+            single.destroy();
+        }
+    }
+
+    @Test
+    public void conflict() {
+        store.useServerFunctions(true);
+        writeHelloWorld(store, "function-conflict");
+        try {
+            writeHelloWorld(store, "function-conflict");
+            fail("expected exception");
+        } catch (IllegalStateException alreadyExists) {
+
+        }
+    }
+
+    @Test
+    public void deduplicates() {
+        store.useServerFunctions(true);
+        writeHelloWorld(store, "function-dedup/a");
+        writeHelloWorld(store, "function-dedup/b");
+        assertEquals(store.metadata("function-dedup/a").hash, store.metadata("function-dedup/b").hash);
+        assertEquals("hello world", readString(store, "function-dedup/b"));
+    }
+
+    @Test
+    public void recordsCodec() {
+        final BlobStore<Void> identity = newStore(HashedBlobStorage.IDENTITY_STORAGE_FILTER);
+        identity.useServerFunctions(true);
+        write(identity, "function-codec", "recorded by the function".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("identity", identity.fullMetadata("function-codec").backingStore.codec);
+
+        // so a store with some other filter still reads it correctly
+        assertEquals("recorded by the function", readString(store, "function-codec"));
+    }
+
+}
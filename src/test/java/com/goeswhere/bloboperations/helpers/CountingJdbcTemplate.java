@@ -0,0 +1,43 @@
+package com.goeswhere.bloboperations.helpers;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.StatementCallback;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Counts the statements issued; everything else in JdbcTemplate goes through one of these.
+// A ConnectionCallback (e.g. a whole large object write) is counted as one.
+public class CountingJdbcTemplate extends JdbcTemplate {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public CountingJdbcTemplate(DataSource ds) {
+        super(ds);
+    }
+
+    public int reset() {
+        return count.getAndSet(0);
+    }
+
+    @Override
+    public <T> T execute(ConnectionCallback<T> action) throws DataAccessException {
+        count.incrementAndGet();
+        return super.execute(action);
+    }
+
+    @Override
+    public <T> T execute(StatementCallback<T> action) throws DataAccessException {
+        count.incrementAndGet();
+        return super.execute(action);
+    }
+
+    @Override
+    public <T> T execute(PreparedStatementCreator psc, PreparedStatementCallback<T> action) throws DataAccessException {
+        count.incrementAndGet();
+        return super.execute(psc, action);
+    }
+}
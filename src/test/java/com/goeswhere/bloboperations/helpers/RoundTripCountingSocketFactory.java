@@ -0,0 +1,112 @@
+package com.goeswhere.bloboperations.helpers;
+
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// For the driver's socketFactory connection property.  Counts round trips to the server: a read after
+// something has been written, since the last read, must be waiting for a reply.  Unlike counting
+// statements, this sees commits, and every call a large object read or write makes.
+// The count is shared by every connection made with it.
+public class RoundTripCountingSocketFactory extends SocketFactory {
+    private static final AtomicInteger roundTrips = new AtomicInteger();
+
+    public static int reset() {
+        return roundTrips.getAndSet(0);
+    }
+
+    @Override
+    public Socket createSocket() {
+        return new CountingSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connected(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connected(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connected(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return connected(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+    }
+
+    private static Socket connected(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+        final Socket socket = new CountingSocket();
+        if (null != local) {
+            socket.bind(local);
+        }
+        socket.connect(remote);
+        return socket;
+    }
+
+    private static class CountingSocket extends Socket {
+        private volatile boolean awaitingReply;
+        private InputStream in;
+        private OutputStream out;
+
+        private void reading() {
+            if (awaitingReply) {
+                awaitingReply = false;
+                roundTrips.incrementAndGet();
+            }
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (null == in) {
+                in = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        reading();
+                        return super.read();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        reading();
+                        return super.read(b, off, len);
+                    }
+                };
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (null == out) {
+                out = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        awaitingReply = true;
+                        out.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        awaitingReply = true;
+                        out.write(b, off, len);
+                    }
+                };
+            }
+            return out;
+        }
+    }
+}
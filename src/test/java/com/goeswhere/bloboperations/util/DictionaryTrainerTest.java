@@ -0,0 +1,45 @@
+package com.goeswhere.bloboperations.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DictionaryTrainerTest {
+
+    @Test
+    public void findsTheCommonParts() {
+        final List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            samples.add(("{\"id\": " + i * 7919 + ", \"status\": \"dispatched\", \"warehouse\": \"north\"}")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        final String dictionary = new String(DictionaryTrainer.train(samples, 1024), StandardCharsets.UTF_8);
+        assertTrue(dictionary, dictionary.contains("\"status\": \"dispatched\""));
+        assertTrue(dictionary.length() <= 1024);
+    }
+
+    @Test
+    public void respectsTheSize() {
+        // the same random content, over and over
+        final byte[] sample = new byte[50_000];
+        new Random(4).nextBytes(sample);
+        final List<byte[]> samples = Collections.nCopies(5, sample);
+
+        assertEquals(100, DictionaryTrainer.train(samples, 100).length);
+        assertEquals(DictionaryTrainer.MAX_SIZE, DictionaryTrainer.train(samples, 1024 * 1024).length);
+    }
+
+    @Test
+    public void nothingInCommon() {
+        assertEquals(0, DictionaryTrainer.train(Arrays.asList(new byte[]{1, 2, 3}, new byte[0]), 100).length);
+    }
+}
@@ -0,0 +1,97 @@
+package com.goeswhere.bloboperations.util;
+
+import com.google.common.io.ByteStreams;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReadAheadInputStreamTest {
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void sameBytes() throws IOException {
+        final byte[] data = new byte[100_000];
+        new Random(3).nextBytes(data);
+
+        for (int chunkSize : new int[]{1, 7, 4096, 200_000}) {
+            try (final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), executor, chunkSize, 2)) {
+                assertArrayEquals(data, ByteStreams.toByteArray(in));
+                assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    @Test
+    public void empty() throws IOException {
+        try (final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), executor, 10, 1)) {
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void errorsArriveInOrder() throws IOException {
+        final InputStream failing = new InputStream() {
+            int remaining = 5;
+
+            @Override
+            public int read() throws IOException {
+                if (0 == remaining--) {
+                    throw new IOException("broken");
+                }
+                return 'a';
+            }
+        };
+
+        try (final InputStream in = new ReadAheadInputStream(failing, executor, 1, 10)) {
+            for (int i = 0; i < 5; ++i) {
+                assertEquals('a', in.read());
+            }
+            in.read();
+            fail("expected exception");
+        } catch (IOException expected) {
+            assertEquals("broken", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void closeStopsReading() throws IOException {
+        final AtomicBoolean closed = new AtomicBoolean();
+        final InputStream endless = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (closed.get()) {
+                    throw new IOException("read after close");
+                }
+                return 0;
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+
+        final InputStream in = new ReadAheadInputStream(endless, executor, 16, 2);
+        assertEquals(0, in.read());
+        in.close();
+        assertTrue(closed.get());
+    }
+}
@@ -0,0 +1,49 @@
+package com.goeswhere.bloboperations.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ZipWriterTest {
+
+    private static final byte[] HELLO = "hello hello hello world".getBytes(StandardCharsets.UTF_8);
+    private static final ZonedDateTime WHEN = ZonedDateTime.of(2018, 11, 3, 12, 30, 10, 0, ZoneOffset.UTC);
+
+    @Test
+    public void plainAndGzip() throws IOException {
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (final GZIPOutputStream gos = new GZIPOutputStream(gzip)) {
+            gos.write(HELLO);
+        }
+
+        final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (final ZipWriter zip = new ZipWriter(archive)) {
+            zip.put("plain.txt", WHEN, new ByteArrayInputStream(HELLO));
+            zip.putGzip("dir/gzipped.txt", WHEN, new ByteArrayInputStream(gzip.toByteArray()), gzip.size(), HELLO.length);
+        }
+
+        try (final ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+            for (String expectedName : new String[]{"plain.txt", "dir/gzipped.txt"}) {
+                final ZipEntry entry = zis.getNextEntry();
+                assertEquals(expectedName, entry.getName());
+
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                Streams.copy(zis, content);
+                assertArrayEquals(HELLO, content.toByteArray());
+            }
+            assertNull(zis.getNextEntry());
+        }
+    }
+}